@@ -1,5 +1,6 @@
 package client;
 
+import utils.ProtocolOptions;
 import utils.StratoUtils;
 
 import java.io.DataInputStream;
@@ -50,6 +51,10 @@ class ClientAuthModule {
                 System.out.println("[SUCCESS] " + responses[0]);
                 token = responses[1];
                 return true;
+            case 4: // Auth_Options
+                client.setOptions(ProtocolOptions.parse(payload));
+                System.out.println("[OPTIONS] " + (payload.isEmpty() ? "none" : payload));
+                return true;
             case 5: //Auth_Info
                 System.out.println("[INFO] " + payload);
                 return true;
@@ -72,6 +77,16 @@ class ClientAuthModule {
         writer.write(StratoUtils.makeAuthMessage((byte) 0, payload));
     }
 
+    /**
+     * sends an Auth_Options message requesting optional protocol features, before signing in
+     *
+     * @param options comma-separated list of the requested options
+     * @throws IOException from stream and socket operations
+     */
+    void requestOptions(String options) throws IOException {
+        writer.write(StratoUtils.makeAuthMessage((byte) 4, options));
+    }
+
     public String getToken() {
         return token;
     }
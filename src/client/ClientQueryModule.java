@@ -1,19 +1,32 @@
 package client;
 
+import utils.DataHash;
 import utils.InvalidTokenException;
+import utils.ProtocolOptions;
 import utils.StratoUtils;
 
 import javax.swing.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.zip.DataFormatException;
 
 /**
  * this class handles the query related operations of the client side
  */
 class ClientQueryModule {
+    // how many times the damaged ranges of an image are requested before the whole image is requested again
+    private static final int MAX_RANGE_ATTEMPTS = 3;
+
     private final StratoClient client;
     private final DataInputStream commandReader;
     private final DataInputStream dataReader;
@@ -21,6 +34,10 @@ class ClientQueryModule {
     private final Scanner input;
 
     private String[] recentQuery;
+    private final Map<String, String[]> pendingQueries = new HashMap<>(); // pipelined queries by request id
+    private final Map<String, Integer> batchesReceived = new HashMap<>(); // intact items of the batches being received, by request id ("" if not pipelined)
+    private int nextRequestId;
+    private final Map<String, PartialImage> partialImages = new HashMap<>(); // images waiting for damaged ranges, by request id
 
     public ClientQueryModule(StratoClient client, DataInputStream commandReader, DataInputStream dataReader, DataOutputStream commandWriter) {
         this.client = client;
@@ -39,7 +56,7 @@ class ClientQueryModule {
      *                               follow the normal token format
      */
     boolean sendQuery() throws IOException, InvalidTokenException {
-        System.out.println("Choose API (APOD or Insight) [1 / 2], or [-1] to disconnect:");
+        System.out.println("Choose API (APOD or Insight) [1 / 2], a batch of either [7], or [-1] to disconnect:");
         byte option = input.nextByte();
         input.nextLine();
         switch (option) {
@@ -52,12 +69,24 @@ class ClientQueryModule {
             case 2:
                 System.out.println("Enter sol number [1-7]:");
                 break;
+            case 7:
+                System.out.println("Enter API and items [1:yyyy-mm-dd..yyyy-mm-dd / 2:1,2,3]:");
+                break;
             default:
                 System.out.println("Invalid command");
                 return false;
         }
         String param = input.nextLine();
 
+        if (client.hasOption(ProtocolOptions.PIPELINE)) {
+            // several parameters separated by spaces are sent as separate queries without waiting for the answers
+            for (String value : param.trim().split("\\s+")) {
+                String id = String.valueOf(nextRequestId++);
+                pendingQueries.put(id, new String[]{"" + option, value});
+                commandWriter.write(StratoUtils.makeQueryMessage(client.getToken(), option, id + "|" + value));
+            }
+            return true;
+        }
         recentQuery = new String[]{"" + option, param};
         commandWriter.write(StratoUtils.makeQueryMessage(client.getToken(), option, param));
         return true;
@@ -75,36 +104,102 @@ class ClientQueryModule {
             return false;
         byte type = commandReader.readByte();
         String payload = new String(readMessage());
+        String id = null;
+        int separator = payload.indexOf('|');
+        if (client.hasOption(ProtocolOptions.PIPELINE) && separator > 0) { // message about a pipelined query
+            id = payload.substring(0, separator);
+            payload = payload.substring(separator + 1);
+        }
         switch (type) {
             case 0: //hash
-                if (receiveData(payload))
-                    return sendQuery();
+                if (receiveData(id, payload))
+                    return completeQuery(id);
                 return true;
             case 3: // info
-                System.out.println("[INFO] " + payload);
+                System.out.println("[INFO] " + (id == null ? "" : "#" + id + " ") + payload);
                 return true;
             case 4: // fail
-                System.out.println("[FAIL] " + payload);
-                return false;
+                System.out.println("[FAIL] " + (id == null ? "" : "#" + id + " ") + payload);
+                batchesReceived.remove(id == null ? "" : id);
+                if (id == null)
+                    return false;
+                return completeQuery(id); // a failed pipelined query does not end the session
+            case 7: // end of a batch, with its number of items
+                acknowledgeBatch(id, payload);
+                return completeQuery(id);
             default:
                 System.out.println("[FATAL] UNKNOWN MESSAGE TYPE");
                 return false;
         }
     }
 
+    /**
+     * asks for the next query once the answered query was the last outstanding one
+     *
+     * @param id the request id of the answered query, null if it was not pipelined
+     * @return whether the connection should be kept open
+     * @throws IOException from stream and socket operations
+     */
+    private boolean completeQuery(String id) throws IOException {
+        if (id != null) {
+            pendingQueries.remove(id);
+            partialImages.remove(id);
+            if (!pendingQueries.isEmpty())
+                return true;
+        }
+        return sendQuery();
+    }
+
     /**
      * processes the received data based on the data type (Image or JSON String)
      *
+     * @param id       the request id of the query, null if it was not pipelined
+     * @param hashcode the hash received through the command socket
+     * @return whether the data was received intact
      * @throws IOException from stream and socket operations
      */
-    private boolean receiveData(String hashcode) throws IOException {
+    private boolean receiveData(String id, String hashcode) throws IOException {
+        // on a multiplexed connection the data frame follows its hash message, marked with the phase byte 2
+        if (client.hasOption(ProtocolOptions.MUX) && dataReader.readByte() != 2)
+            throw new IOException("Expected a data frame on the command connection");
         byte type = dataReader.readByte();
-        int length = dataReader.readInt();
-        byte[] data = new byte[length];
-        dataReader.readFully(data, 0, data.length);
-        if (!verifyDataHash(hashcode, data, type)) {
-            requestRetransmit();
-            return false;
+        if (type == 4) // items of a batch, every item carries its own hash
+            return receiveBatch(id, dataReader.readInt(), dataReader);
+        if (type == 7) // items of a batch compressed together
+            return receiveCompressedBatch(id);
+        byte[] data;
+        if (type == 5 || type == 6) { // checksummed chunks, or damaged ranges sent again
+            PartialImage image = type == 5 ? readCheckedChunks() : readRanges(id);
+            if (image == null) // ranges of an unknown image
+                return false;
+            if (!image.damaged.isEmpty()) {
+                requestRanges(id, image);
+                return false;
+            }
+            data = image.data;
+            hashcode = image.hash;
+            type = 1;
+            if (!verifyDataHash(hashcode, data, type)) {
+                requestRetransmit(id);
+                return false;
+            }
+        } else if (type == 3) { // streamed image, the hash follows the data
+            DataHash hash = new DataHash(1, client.hasOption(ProtocolOptions.CRC32C));
+            data = readChunks(hash);
+            hashcode = new String(readMessage(dataReader), StandardCharsets.UTF_8);
+            type = 1;
+            if (!hashcode.equals(hash.toString())) {
+                requestRetransmit(id);
+                return false;
+            }
+        } else {
+            int length = dataReader.readInt();
+            data = new byte[length];
+            dataReader.readFully(data, 0, data.length);
+            if (!verifyDataHash(hashcode, data, type)) {
+                requestRetransmit(id);
+                return false;
+            }
         }
         if (type == 1) // APOD data
             processImage(data);
@@ -112,10 +207,189 @@ class ClientQueryModule {
             processJSONObject(data);
 
         // send acknowledge message
-        commandWriter.write(StratoUtils.makeQueryMessage(client.getToken(), (byte) 5, hashcode));
+        commandWriter.write(StratoUtils.makeQueryMessage(client.getToken(), (byte) 5, id == null ? hashcode : id + "|" + hashcode));
         return true;
     }
 
+    /**
+     * receives items of a batch from the data socket. images are saved under their date and
+     * Insight data is printed. the intact items are counted until the end of the batch (see acknowledgeBatch()).
+     *
+     * @param id     the request id of the query, null if it was not pipelined
+     * @param count  the number of items in the frame
+     * @param reader the stream of the items
+     * @return false, the batch is complete once its Query_Batch message arrives
+     * @throws IOException from stream and socket operations
+     */
+    private boolean receiveBatch(String id, int count, DataInputStream reader) throws IOException {
+        int received = 0;
+        for (int i = 0; i < count; i++) {
+            byte type = reader.readByte();
+            String key = new String(readMessage(reader), StandardCharsets.UTF_8);
+            byte[] data = readMessage(reader);
+            String hashcode = new String(readMessage(reader), StandardCharsets.UTF_8);
+            if (type == 0) {
+                System.out.println("[FAIL] " + key + ": " + new String(data, StandardCharsets.UTF_8));
+                continue;
+            }
+            if (!verifyDataHash(hashcode, data, type)) {
+                System.out.println("[FAIL] " + key + ": incorrect file hashcode");
+                continue;
+            }
+            received++;
+            if (type == 1) { // APOD data
+                StratoUtils.saveImage(data, key);
+            } else { // Insight data
+                System.out.println("Sol " + key + ":");
+                processJSONObject(data);
+            }
+        }
+        batchesReceived.merge(id == null ? "" : id, received, Integer::sum);
+        return false;
+    }
+
+    /**
+     * receives items of a batch compressed together, sent with the "deflate" option.
+     * items that cannot be decompressed are not counted as intact.
+     *
+     * @param id the request id of the query, null if it was not pipelined
+     * @return false, the batch is complete once its Query_Batch message arrives
+     * @throws IOException from stream and socket operations
+     */
+    private boolean receiveCompressedBatch(String id) throws IOException {
+        int count = dataReader.readInt();
+        byte[] items;
+        try {
+            items = StratoUtils.inflate(readMessage(dataReader));
+        } catch (DataFormatException e) {
+            System.out.println("[FAIL] batch: " + e.getMessage());
+            return false;
+        }
+        return receiveBatch(id, count, new DataInputStream(new ByteArrayInputStream(items)));
+    }
+
+    /**
+     * acknowledges a batch once all its items are received, with the number of intact items
+     *
+     * @param id    the request id of the query, null if it was not pipelined
+     * @param count the number of items in the batch, from the Query_Batch message
+     * @throws IOException from stream and socket operations
+     */
+    private void acknowledgeBatch(String id, String count) throws IOException {
+        Integer received = batchesReceived.remove(id == null ? "" : id);
+        String summary = "batch-" + (received == null ? 0 : received) + "/" + count;
+        System.out.println("[INFO] received " + summary);
+        commandWriter.write(StratoUtils.makeQueryMessage(client.getToken(), (byte) 5, id == null ? summary : id + "|" + summary));
+    }
+
+    /**
+     * an image received in checksummed chunks, with the ranges that arrived damaged
+     */
+    private static final class PartialImage {
+        final byte[] data;
+        final String hash;
+        final List<int[]> damaged = new ArrayList<>(); // {offset, length} pairs
+        int attempts;
+
+        PartialImage(byte[] data, String hash) {
+            this.data = data;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * reads an image sent in checksummed chunks from the data socket, noting the chunks whose checksum does not match
+     *
+     * @return the received image
+     * @throws IOException from stream and socket operations
+     */
+    private PartialImage readCheckedChunks() throws IOException {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        List<int[]> damaged = new ArrayList<>();
+        byte[] chunk = new byte[0];
+        int length;
+        while ((length = dataReader.readInt()) > 0) {
+            if (chunk.length < length)
+                chunk = new byte[length];
+            dataReader.readFully(chunk, 0, length);
+            if (dataReader.readInt() != StratoUtils.chunkChecksum(ByteBuffer.wrap(chunk, 0, length)))
+                damaged.add(new int[]{image.size(), length});
+            image.write(chunk, 0, length);
+        }
+        PartialImage received = new PartialImage(image.toByteArray(), new String(readMessage(dataReader), StandardCharsets.UTF_8));
+        received.damaged.addAll(damaged);
+        return received;
+    }
+
+    /**
+     * reads ranges sent again from the data socket into the image waiting for them, noting the ranges that are still damaged
+     *
+     * @param id the request id of the query, null if it was not pipelined
+     * @return the image, or null if no image was waiting for ranges
+     * @throws IOException from stream and socket operations
+     */
+    private PartialImage readRanges(String id) throws IOException {
+        PartialImage image = partialImages.remove(id == null ? "" : id);
+        int count = dataReader.readInt();
+        for (int i = 0; i < count; i++) {
+            int offset = dataReader.readInt();
+            byte[] range = readMessage(dataReader);
+            int checksum = dataReader.readInt();
+            if (image == null || offset + range.length > image.data.length)
+                continue;
+            System.arraycopy(range, 0, image.data, offset, range.length);
+            if (checksum != StratoUtils.chunkChecksum(ByteBuffer.wrap(range)))
+                image.damaged.add(new int[]{offset, range.length});
+        }
+        return image;
+    }
+
+    /**
+     * asks the server again for the damaged ranges of an image with a Query_Ranges message,
+     * or for the whole image once a few attempts have failed
+     *
+     * @param id    the request id of the query, null if it was not pipelined
+     * @param image the image with its damaged ranges
+     * @throws IOException from stream and socket operations
+     */
+    private void requestRanges(String id, PartialImage image) throws IOException {
+        if (++image.attempts > MAX_RANGE_ATTEMPTS) {
+            requestRetransmit(id);
+            return;
+        }
+        System.out.println("Damaged chunks: requesting " + image.damaged.size() + " range(s) again..");
+        String date = id == null ? recentQuery[1] : pendingQueries.get(id)[1];
+        StringBuilder ranges = new StringBuilder(date).append(':');
+        for (int[] range : image.damaged)
+            ranges.append(range[0]).append('+').append(range[1]).append(',');
+        ranges.setLength(ranges.length() - 1);
+        image.damaged.clear();
+        partialImages.put(id == null ? "" : id, image);
+        commandWriter.write(StratoUtils.makeQueryMessage(client.getToken(), (byte) 8,
+                id == null ? ranges.toString() : id + "|" + ranges));
+    }
+
+    /**
+     * reads the chunks of a streamed image from the data socket until the empty chunk that ends it
+     *
+     * @param hash the hash to which the received bytes are added
+     * @return the image as a byte array
+     * @throws IOException from stream and socket operations
+     */
+    private byte[] readChunks(DataHash hash) throws IOException {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        byte[] chunk = new byte[0];
+        int length;
+        while ((length = dataReader.readInt()) > 0) {
+            if (chunk.length < length)
+                chunk = new byte[length];
+            dataReader.readFully(chunk, 0, length);
+            hash.update(chunk, 0, length);
+            image.write(chunk, 0, length);
+        }
+        return image.toByteArray();
+    }
+
     /**
      * prompts the to choose an action for the image
      *
@@ -168,9 +442,20 @@ class ClientQueryModule {
      * @throws IOException from stream and socket operations
      */
     private byte[] readMessage() throws IOException {
-        int length = commandReader.readInt();
+        return readMessage(commandReader);
+    }
+
+    /**
+     * reads a length-prefixed payload from an input stream
+     *
+     * @param reader the stream to read from
+     * @return the payload as an array of bytes
+     * @throws IOException from stream and socket operations
+     */
+    private static byte[] readMessage(DataInputStream reader) throws IOException {
+        int length = reader.readInt();
         byte[] message = new byte[length];
-        commandReader.readFully(message, 0, message.length);
+        reader.readFully(message, 0, message.length);
         return message;
     }
 
@@ -183,18 +468,24 @@ class ClientQueryModule {
      * @return whether the received hashcode matches that of the received file
      */
     private boolean verifyDataHash(String receivedHash, byte[] data, byte type) {
-        String receivedFileHash = (type == 1 ? "img-" : "str-") + Arrays.hashCode(data);
+        String receivedFileHash = StratoUtils.generateHash(type, data, client.hasOption(ProtocolOptions.CRC32C));
         return receivedHash.equals(receivedFileHash);
     }
 
     /**
-     * resends a request of the last query to the server.
+     * resends a request of the last query, or of the pipelined query with the given id, to the server.
      *
+     * @param id the request id of the query, null if it was not pipelined
      * @throws IOException from stream and socket operations
      */
-    private void requestRetransmit() throws IOException {
+    private void requestRetransmit(String id) throws IOException {
         System.out.println("File mismatch: incorrect file hashcode, requesting retransmit..");
-        commandWriter.write(StratoUtils.makeQueryMessage(client.getToken(), Byte.parseByte(recentQuery[0]), recentQuery[1]));
+        if (id == null) {
+            commandWriter.write(StratoUtils.makeQueryMessage(client.getToken(), Byte.parseByte(recentQuery[0]), recentQuery[1]));
+            return;
+        }
+        String[] query = pendingQueries.get(id);
+        commandWriter.write(StratoUtils.makeQueryMessage(client.getToken(), Byte.parseByte(query[0]), id + "|" + query[1]));
     }
 
     /**
@@ -0,0 +1,74 @@
+package client;
+
+import utils.StratoUtils;
+
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * this class counts the data bytes read by the client and grants them back to the server as credits
+ * the server may have at most a window of unread bytes in flight. once half of the window has been read,
+ * a Query_Credit message (query type 9) grants the read bytes again, so the server can keep sending.
+ */
+class CreditInputStream extends FilterInputStream {
+
+    private final StratoClient client;
+    private final DataOutputStream commandWriter;
+    private final int window;
+    private int consumed; // bytes read since the last grant
+
+    /**
+     * grants the whole window, so the server can start sending
+     *
+     * @param data          the stream of the data frames
+     * @param client        the client, for its token
+     * @param commandWriter the stream Query_Credit messages are written to
+     * @param window        the number of bytes the server may send ahead of the client
+     * @throws IOException from stream and socket operations
+     */
+    CreditInputStream(InputStream data, StratoClient client, DataOutputStream commandWriter, int window) throws IOException {
+        super(data);
+        this.client = client;
+        this.commandWriter = commandWriter;
+        this.window = window;
+        grant(window);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0)
+            consume(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0)
+            consume(read);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped > 0)
+            consume((int) skipped);
+        return skipped;
+    }
+
+    private void consume(int bytes) throws IOException {
+        consumed += bytes;
+        if (consumed >= window / 2) {
+            grant(consumed);
+            consumed = 0;
+        }
+    }
+
+    private void grant(int bytes) throws IOException {
+        commandWriter.write(StratoUtils.makeQueryMessage(client.getToken(), (byte) 9, String.valueOf(bytes)));
+    }
+}
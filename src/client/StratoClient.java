@@ -1,18 +1,31 @@
 package client;
 
 import server.StratoServer;
+import utils.DataHash;
+import utils.ProtocolOptions;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 public class StratoClient {
 
+    // comma-separated protocol options requested from the server (see ProtocolOptions), none by default
+    static final String REQUESTED_OPTIONS = System.getProperty("strato.options", "");
+    // bytes the server may send ahead of the client with the "credit" option
+    static final int CREDIT_WINDOW = Integer.getInteger("strato.creditWindow", 256 * 1024);
+
     private ClientAuthModule authModule;
     private ClientQueryModule queryModule;
     private DataOutputStream commandWriter;
     private DataInputStream commandReader;
+    private Set<String> options = Collections.emptySet();
 
     public static void main(String[] args) {
         StratoClient client = new StratoClient();
@@ -35,6 +48,11 @@ public class StratoClient {
         commandWriter = new DataOutputStream(authSocket.getOutputStream());
         commandReader = new DataInputStream(authSocket.getInputStream());
         authModule = new ClientAuthModule(this, commandReader, commandWriter);
+        Set<String> requested = new LinkedHashSet<>(ProtocolOptions.parse(REQUESTED_OPTIONS));
+        if (!DataHash.isCrc32cSupported() && requested.remove(ProtocolOptions.CRC32C))
+            System.out.println("CRC32C is not supported by this JVM, using the original hashes.");
+        if (!requested.isEmpty())
+            authModule.requestOptions(ProtocolOptions.format(requested));
 
         while (true) {
             if (!receiveMessage())
@@ -61,15 +79,27 @@ public class StratoClient {
     }
 
     /**
-     * connects to the data socket, initializes the input stream from the data socket and the query module
+     * connects to the data socket, sends the token so the server can pair it with this client,
+     * and initializes the input stream from the data socket and the query module.
+     * if data is multiplexed on the command connection (port 0), no data socket is connected.
+     * with the "credit" option, the data stream grants the bytes it reads back to the server.
      *
      * @param port the received port for the data socket
      * @return whether the client chose to terminate connection
      * @throws IOException from stream and socket operations
      */
     boolean initializeQueryPhase(int port) throws IOException {
-        Socket dataSocket = new Socket("localhost", port);
-        DataInputStream dataReader = new DataInputStream(dataSocket.getInputStream());
+        InputStream data;
+        if (port == 0 && hasOption(ProtocolOptions.MUX)) {
+            data = commandReader; // data frames are read between command messages
+        } else {
+            Socket dataSocket = new Socket("localhost", port);
+            dataSocket.getOutputStream().write(getToken().getBytes(StandardCharsets.UTF_8)); // pairing handshake
+            data = dataSocket.getInputStream();
+        }
+        if (hasOption(ProtocolOptions.CREDIT))
+            data = new CreditInputStream(data, this, commandWriter, CREDIT_WINDOW);
+        DataInputStream dataReader = data == commandReader ? commandReader : new DataInputStream(data);
         queryModule = new ClientQueryModule(this, commandReader, dataReader, commandWriter);
         return queryModule.sendQuery();
     }
@@ -78,4 +108,16 @@ public class StratoClient {
         return authModule.getToken();
     }
 
+    void setOptions(Set<String> options) {
+        this.options = options;
+    }
+
+    /**
+     * @param option name of a protocol option
+     * @return whether the server accepted the option
+     */
+    boolean hasOption(String option) {
+        return options.contains(option);
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+package server;
+
+import java.net.InetAddress;
+
+/**
+ * this class holds the information of a logged-in client
+ * the address and port are kept as parsed values, and a session is bound to the connection it was created on,
+ * so checking a query only needs a comparison against the session token.
+ * a session expires after its lifetime, or when no query was made with it for the idle timeout.
+ */
+final class ClientSession {
+
+    private final SessionToken token;
+    private final String username;
+    private final InetAddress address;
+    private final int port;
+    private final long expiresAt;
+    private final long idleTimeout;
+
+    private volatile boolean active = true;
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    ClientSession(SessionToken token, String username, InetAddress address, int port, long expiresAt, long idleTimeout) {
+        this.token = token;
+        this.username = username;
+        this.address = address;
+        this.port = port;
+        this.expiresAt = expiresAt;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * checks whether a received token belongs to this session, and the session is still registered and not expired.
+     * a successful check counts as activity of the session.
+     *
+     * @param buffer the buffer holding the received token
+     * @param offset the position of the token in the buffer
+     * @return whether the token is valid for this session
+     */
+    boolean isValidToken(byte[] buffer, int offset) {
+        if (!active || !token.matches(buffer, offset))
+            return false;
+        long now = System.currentTimeMillis();
+        if (isExpired(now))
+            return false;
+        lastAccess = now;
+        return true;
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @return whether the session has reached its lifetime or has been idle for too long
+     */
+    boolean isExpired(long now) {
+        return now >= expiresAt || now - lastAccess > idleTimeout;
+    }
+
+    /**
+     * marks the session as no longer registered
+     */
+    void deactivate() {
+        active = false;
+    }
+
+    SessionToken getToken() {
+        return token;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    InetAddress getAddress() {
+        return address;
+    }
+
+    int getPort() {
+        return port;
+    }
+}
@@ -0,0 +1,172 @@
+package server;
+
+import utils.MessageCodec;
+import utils.StratoUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * this class writes command messages to a client, coalescing the messages of a protocol turn into a single write
+ * messages are encoded directly into a reusable buffer, which is written out by flush().
+ * the handler flushes at the end of every turn: after an inbound message is handled, when a pipelined query
+ * is answered, and before a data frame is sent (the client only reads the data socket once it has the hash message).
+ * a message that does not fit in the buffer flushes it first, so the buffer does not grow.
+ * on a multiplexed connection, a thread sending a data frame owns the stream between beginFrame() and endFrame().
+ * meanwhile the messages of other threads are only buffered (growing the buffer if needed), and written after the frame.
+ * at most MAX_OUTBOUND_BYTES are held back, further writers wait for the frame to end, up to the socket timeout.
+ * all methods are synchronized, since pipelined queries are answered on other threads.
+ */
+final class CommandChannelWriter {
+
+    private final OutputStream output;
+    private final int bufferSize;
+    private ByteBuffer buffer;
+    private Thread frameOwner; // the thread sending a data frame on the stream, null if none
+
+    /**
+     * @param output     the stream of the command connection
+     * @param bufferSize the size of the buffer messages are coalesced in
+     */
+    CommandChannelWriter(OutputStream output, int bufferSize) {
+        this.output = output;
+        this.bufferSize = bufferSize;
+        buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * appends an authentication phase message
+     *
+     * @param type    message type
+     * @param payload message payload
+     * @throws IOException from stream and socket operations
+     */
+    synchronized void writeAuthMessage(byte type, String payload) throws IOException {
+        if (reserve(MessageCodec.authMessageLength(payload)))
+            MessageCodec.encodeAuthMessage(buffer, type, payload);
+        else
+            output.write(StratoUtils.makeAuthMessage(type, payload));
+    }
+
+    /**
+     * appends a query phase message
+     *
+     * @param token   the token of the client
+     * @param type    message type
+     * @param payload message payload
+     * @throws IOException from stream and socket operations
+     */
+    synchronized void writeQueryMessage(String token, byte type, String payload) throws IOException {
+        if (reserve(MessageCodec.queryMessageLength(payload)))
+            MessageCodec.encodeQueryMessage(buffer, token, type, payload);
+        else
+            output.write(StratoUtils.makeQueryMessage(token, type, payload));
+    }
+
+    /**
+     * makes room for a message in the buffer, flushing it if needed
+     *
+     * @param length length of the encoded message
+     * @return whether the message fits in the buffer, otherwise it must be written directly
+     */
+    private boolean reserve(int length) throws IOException {
+        awaitRoom(length);
+        if (length <= buffer.remaining())
+            return true;
+        if (isHeldBack()) { // the stream cannot be written now, keep the message
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            buffer = larger.put(buffer);
+            return true;
+        }
+        flush();
+        return length <= buffer.remaining();
+    }
+
+    /**
+     * waits while the messages held back behind a frame would exceed MAX_OUTBOUND_BYTES.
+     * a message larger than the limit is let through once nothing is held back.
+     *
+     * @throws IOException if the frame does not end within the socket timeout
+     */
+    private void awaitRoom(int length) throws IOException {
+        long deadline = System.currentTimeMillis() + StratoUtils.SOCKET_TIMEOUT_DURATION;
+        while (isHeldBack() && buffer.position() > 0 && buffer.position() + length > StratoServer.MAX_OUTBOUND_BYTES) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                throw new SocketTimeoutException("Data frame is not read by the client");
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * writes the buffered messages to the connection in one write,
+     * unless another thread is sending a data frame, in which case they are written after the frame
+     *
+     * @throws IOException from stream and socket operations
+     */
+    synchronized void flush() throws IOException {
+        if (buffer.position() == 0 || isHeldBack())
+            return;
+        int length = buffer.position();
+        byte[] written = buffer.array();
+        if (buffer.capacity() > bufferSize) // grown while a frame was sent
+            buffer = ByteBuffer.allocate(bufferSize);
+        buffer.clear(); // dropped even if the write fails, the connection is lost then
+        output.write(written, 0, length);
+        output.flush();
+    }
+
+    /**
+     * appends the hash message of a data frame and writes the buffered messages, then lets the current thread
+     * write the frame to the stream until endFrame(). this is done in one step, so no message of another thread
+     * comes between the hash message and its frame. frames are not nested, the data writer is held while one is sent.
+     *
+     * @param token   the token of the client
+     * @param type    type of the message announcing the frame
+     * @param payload payload of the message, e.g. the hash of the data
+     * @throws IOException from stream and socket operations
+     */
+    synchronized void beginFrame(String token, byte type, String payload) throws IOException {
+        writeQueryMessage(token, type, payload);
+        flush();
+        frameOwner = Thread.currentThread();
+    }
+
+    /**
+     * ends the data frame of the current thread and writes the messages held back while it was sent
+     *
+     * @throws IOException from stream and socket operations
+     */
+    synchronized void endFrame() throws IOException {
+        frameOwner = null;
+        notifyAll(); // release the writers waiting for room
+        flush();
+    }
+
+    private boolean isHeldBack() {
+        return frameOwner != null && frameOwner != Thread.currentThread();
+    }
+
+    /**
+     * writes the buffered messages and closes the stream
+     *
+     * @throws IOException from stream and socket operations
+     */
+    synchronized void close() throws IOException {
+        frameOwner = null;
+        notifyAll();
+        try {
+            flush();
+        } finally {
+            output.close();
+        }
+    }
+}
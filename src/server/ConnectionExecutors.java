@@ -0,0 +1,105 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * this class creates the executors that run client connections on the server side
+ * the mode is chosen at startup:
+ * - "virtual": one virtual thread per connection (when the running JVM supports them)
+ * - "pool": a bounded worker pool with an admission queue, queued clients are told so, extra connections are rejected
+ * - "thread": one platform thread per connection (the original behaviour)
+ */
+final class ConnectionExecutors {
+
+    private ConnectionExecutors() {
+    }
+
+    /**
+     * creates the executor for the given connection mode
+     *
+     * @param mode       the connection mode ("virtual", "pool" or "thread")
+     * @param maxWorkers maximum number of worker threads in "pool" mode
+     * @param queueSize  number of accepted connections that may wait for a worker in "pool" mode
+     * @return the executor to which client handlers are submitted
+     */
+    static ExecutorService create(String mode, int maxWorkers, int queueSize) {
+        switch (mode) {
+            case "virtual":
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null)
+                    return virtual;
+                System.err.println("Virtual threads are not supported by this JVM, using a bounded pool.");
+                return newBoundedPool(maxWorkers, queueSize);
+            case "thread":
+                return Executors.newCachedThreadPool(namedFactory("strato-client-"));
+            case "pool":
+                return newBoundedPool(maxWorkers, queueSize);
+            default:
+                throw new IllegalArgumentException("Unknown connection mode: " + mode);
+        }
+    }
+
+    /**
+     * creates a pool with a fixed number of workers and a bounded admission queue.
+     * once both are full, submitting a connection throws a RejectedExecutionException
+     *
+     * @param maxWorkers maximum number of worker threads
+     * @param queueSize  capacity of the admission queue
+     * @return the bounded pool
+     */
+    private static ExecutorService newBoundedPool(int maxWorkers, int queueSize) {
+        return newBoundedPool("strato-worker-", maxWorkers, queueSize);
+    }
+
+    /**
+     * creates a pool with a fixed number of threads, which time out when idle, and a bounded queue.
+     * once both are full, submitting a task throws a RejectedExecutionException
+     *
+     * @param prefix    name prefix of the threads
+     * @param threads   maximum number of threads
+     * @param queueSize capacity of the queue
+     * @return the bounded pool
+     */
+    static ExecutorService newBoundedPool(String prefix, int threads, int queueSize) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), namedFactory(prefix), new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @param executor a connection executor
+     * @return whether submitted tasks are waiting in the admission queue of the executor for a worker
+     */
+    static boolean hasQueuedTasks(ExecutorService executor) {
+        return executor instanceof ThreadPoolExecutor && !((ThreadPoolExecutor) executor).getQueue().isEmpty();
+    }
+
+    /**
+     * looks up the virtual thread executor reflectively, as it only exists on newer JVMs
+     *
+     * @return a virtual-thread-per-task executor, or null if not supported
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static ThreadFactory namedFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
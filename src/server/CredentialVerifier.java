@@ -0,0 +1,158 @@
+package server;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * this class checks passwords against the credentials stored in the users file
+ * stored credentials are either salted PBKDF2 hashes ("pbkdf2$iterations$salt$hash", see hash())
+ * or plaintext passwords of files that have not been migrated yet.
+ * hashing runs on the calling connection thread, which waits for the result anyway, but only a few threads
+ * hash at the same time so that it cannot take over the CPU, and verifications beyond the waiting limit are rejected.
+ * successful verifications are cached for a short time to absorb reconnect storms.
+ */
+final class CredentialVerifier {
+
+    static final String PBKDF2_PREFIX = "pbkdf2$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final int MAX_CACHED_VERIFICATIONS = 10000;
+
+    private final Semaphore hashingPermits;
+    private final int maxVerifications; // hashing and waiting verifications
+    private final AtomicInteger verifications = new AtomicInteger();
+    private final long cacheTtl;
+    private final Map<String, Long> verifiedUntil = new ConcurrentHashMap<>();
+
+    /**
+     * @param threads   number of threads that may hash passwords at the same time
+     * @param queueSize number of verifications that may wait for another to finish hashing
+     * @param cacheTtl  how long (in milliseconds) a successful verification is remembered
+     */
+    CredentialVerifier(int threads, int queueSize, long cacheTtl) {
+        hashingPermits = new Semaphore(threads, true);
+        maxVerifications = threads + queueSize;
+        this.cacheTtl = cacheTtl;
+    }
+
+    /**
+     * checks a password against the stored credential of a user
+     *
+     * @param password the password given by the client
+     * @param stored   the stored credential of the user
+     * @return whether the password is correct
+     * @throws RejectedExecutionException if too many verifications are hashing or waiting
+     */
+    boolean verify(String password, String stored) throws RejectedExecutionException {
+        if (!stored.startsWith(PBKDF2_PREFIX)) // plaintext credential
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+
+        String cacheKey = cacheKey(password, stored);
+        Long until = verifiedUntil.get(cacheKey);
+        if (until != null && until > System.currentTimeMillis())
+            return true;
+
+        if (verifications.incrementAndGet() > maxVerifications) {
+            verifications.decrementAndGet();
+            throw new RejectedExecutionException("Too many password verifications");
+        }
+        boolean valid;
+        try {
+            hashingPermits.acquire();
+            try {
+                valid = matchesHash(password, stored);
+            } finally {
+                hashingPermits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (RuntimeException e) { // malformed stored credential
+            e.printStackTrace();
+            return false;
+        } finally {
+            verifications.decrementAndGet();
+        }
+        if (valid)
+            remember(cacheKey);
+        return valid;
+    }
+
+    private void remember(String cacheKey) {
+        long now = System.currentTimeMillis();
+        if (verifiedUntil.size() >= MAX_CACHED_VERIFICATIONS) {
+            Iterator<Long> expiries = verifiedUntil.values().iterator();
+            while (expiries.hasNext())
+                if (expiries.next() <= now)
+                    expiries.remove();
+            if (verifiedUntil.size() >= MAX_CACHED_VERIFICATIONS)
+                return;
+        }
+        verifiedUntil.put(cacheKey, now + cacheTtl);
+    }
+
+    /**
+     * derives the cache key of a verification. the password itself is never kept,
+     * and including the stored credential makes a password change invalidate the entry.
+     */
+    private static String cacheKey(String password, String stored) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(stored.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(password.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * hashes a password with a new random salt
+     *
+     * @param password   the password to be hashed
+     * @param iterations the PBKDF2 cost, higher is slower for both the server and an attacker
+     * @return the credential to be stored, in the form "pbkdf2$iterations$salt$hash"
+     */
+    static String hash(String password, int iterations) {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return PBKDF2_PREFIX + iterations + "$" + encoder.encodeToString(salt) + "$"
+                + encoder.encodeToString(pbkdf2(password, salt, iterations, HASH_LENGTH));
+    }
+
+    private static boolean matchesHash(String password, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4)
+            return false;
+        Base64.Decoder decoder = Base64.getDecoder();
+        byte[] salt = decoder.decode(parts[2]);
+        byte[] expected = decoder.decode(parts[3]);
+        return MessageDigest.isEqual(expected, pbkdf2(password, salt, Integer.parseInt(parts[1]), expected.length));
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int length) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * this class holds the byte credits a client granted for its data frames
+ * the client grants credits with Query_Credit messages as it reads the data, and the data writer takes credits
+ * before every write, waiting when they run out. so at most the granted bytes are in flight towards a slow client,
+ * and the writing thread is released with an exception if the client stops granting.
+ */
+final class CreditWindow {
+
+    private final long timeout;
+    private long credit;
+
+    /**
+     * @param timeout how long (in milliseconds) a write waits for credits before failing
+     */
+    CreditWindow(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * adds credits granted by the client
+     *
+     * @param bytes number of bytes the client is ready to receive
+     */
+    synchronized void grant(long bytes) {
+        if (bytes <= 0)
+            return;
+        credit = credit + bytes < 0 ? Long.MAX_VALUE : credit + bytes; // do not overflow
+        notifyAll();
+    }
+
+    /**
+     * takes credits for a write, waiting until some are granted
+     *
+     * @param wanted number of bytes to be written
+     * @return number of bytes that may be written, between 1 and wanted
+     * @throws IOException if no credits are granted within the timeout
+     */
+    synchronized int acquire(int wanted) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (credit <= 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                throw new SocketTimeoutException("Client did not grant credits in time");
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        int taken = (int) Math.min(credit, wanted);
+        credit -= taken;
+        return taken;
+    }
+
+    /**
+     * returns credits that were taken but not used, e.g. when a write wrote fewer bytes
+     *
+     * @param bytes number of unused bytes
+     */
+    synchronized void release(int bytes) {
+        grant(bytes);
+    }
+}
@@ -0,0 +1,264 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * this class writes data frames (type byte, int length, data) to the data channel of a client
+ * the frame header is built in a reused direct buffer and written together with the data in one gathering write,
+ * and files are transferred from their channel without being copied into the heap.
+ * for multiplexed clients the channel is the command connection, and every frame starts with the phase byte 2.
+ * with credit flow control every write first takes credits from the client's window, and is cut to the credits taken.
+ */
+final class DataChannelWriter {
+
+    // phase byte that marks a data frame on a multiplexed command connection
+    static final byte DATA_PHASE = 2;
+
+    private final GatheringByteChannel channel;
+    private final boolean multiplexed;
+    private final CreditWindow credits; // null without credit flow control
+    private final ByteBuffer header = ByteBuffer.allocateDirect(10); // at most phase, type, count and length
+    private final ByteBuffer checksum = ByteBuffer.allocateDirect(4);
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    private final ByteBuffer[] frame = new ByteBuffer[2];
+    private final ByteBuffer[] checkedFrame = new ByteBuffer[3];
+
+    /**
+     * @param channel     the channel frames are written to
+     * @param multiplexed whether the channel is the command connection, so frames are prefixed with DATA_PHASE
+     * @param credits     the credits granted by the client, or null if writes are not flow controlled
+     */
+    DataChannelWriter(GatheringByteChannel channel, boolean multiplexed, CreditWindow credits) {
+        this.channel = channel;
+        this.multiplexed = multiplexed;
+        this.credits = credits;
+        frame[0] = header;
+        checkedFrame[0] = header;
+        checkedFrame[2] = checksum;
+    }
+
+    /**
+     * @return the credits granted by the client, or null if writes are not flow controlled
+     */
+    CreditWindow getCredits() {
+        return credits;
+    }
+
+    /**
+     * sends a data frame
+     *
+     * @param type data type (image or JSON object)
+     * @param data the data as an array of bytes
+     * @throws IOException from channel operations
+     */
+    void send(byte type, byte[] data) throws IOException {
+        beginFrame();
+        header.put(type).putInt(data.length).flip();
+        writeFrame(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * sends a file as a data frame, transferring it directly from the file channel
+     *
+     * @param type data type
+     * @param file the channel of the file
+     * @throws IOException from channel operations
+     */
+    void sendFile(byte type, FileChannel file) throws IOException {
+        long size = file.size();
+        beginFrame();
+        header.put(type).putInt((int) size).flip();
+        writeFully(header);
+        long sent = 0;
+        while (sent < size) {
+            int allowed = credits == null ? Integer.MAX_VALUE : credits.acquire((int) Math.min(size - sent, Integer.MAX_VALUE));
+            long transferred = file.transferTo(sent, Math.min(size - sent, allowed), channel);
+            if (credits != null)
+                credits.release((int) (allowed - transferred));
+            sent += transferred;
+        }
+    }
+
+    /**
+     * starts a streamed frame by sending its type, to be followed by chunks and endStream()
+     *
+     * @param type data type of the stream
+     * @throws IOException from channel operations
+     */
+    void beginStream(byte type) throws IOException {
+        beginFrame();
+        header.put(type).flip();
+        writeFully(header);
+    }
+
+    /**
+     * sends a chunk of a streamed frame as (int length, bytes)
+     *
+     * @param data   array holding the chunk
+     * @param offset position of the chunk in the array
+     * @param length length of the chunk, must be positive
+     * @throws IOException from channel operations
+     */
+    void sendChunk(byte[] data, int offset, int length) throws IOException {
+        header.clear();
+        header.putInt(length).flip();
+        writeFrame(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * sends a chunk of a streamed frame followed by its checksum, as (int length, bytes, int checksum)
+     *
+     * @param data     the chunk, from its position to its limit, must not be empty
+     * @param checksum the checksum of the chunk
+     * @throws IOException from channel operations
+     */
+    void sendChunk(ByteBuffer data, int checksum) throws IOException {
+        header.clear();
+        header.putInt(data.remaining()).flip();
+        writeCheckedFrame(data, checksum);
+    }
+
+    /**
+     * sends a range of a file followed by its checksum, as (int offset, int length, bytes, int checksum)
+     *
+     * @param offset   position of the range in the file
+     * @param data     the range, from its position to its limit
+     * @param checksum the checksum of the range
+     * @throws IOException from channel operations
+     */
+    void sendRange(int offset, ByteBuffer data, int checksum) throws IOException {
+        header.clear();
+        header.putInt(offset).putInt(data.remaining()).flip();
+        writeCheckedFrame(data, checksum);
+    }
+
+    /**
+     * ends a streamed frame with an empty chunk followed by the trailer as (int length, bytes)
+     *
+     * @param trailer the trailer of the stream, e.g. its hash
+     * @throws IOException from channel operations
+     */
+    void endStream(byte[] trailer) throws IOException {
+        ByteBuffer end = ByteBuffer.allocate(8 + trailer.length);
+        end.putInt(0).putInt(trailer.length).put(trailer).flip();
+        writeFully(end);
+    }
+
+    /**
+     * starts a batch frame by sending its type and the number of items, each to be sent with sendBatchItem()
+     *
+     * @param type  data type of the batch
+     * @param count number of items in the batch
+     * @throws IOException from channel operations
+     */
+    void beginBatch(byte type, int count) throws IOException {
+        beginFrame();
+        header.put(type).putInt(count).flip();
+        writeFully(header);
+    }
+
+    /**
+     * sends a batch frame whose items are compressed together, as (byte type, int count, int length, items)
+     *
+     * @param type  data type of the batch
+     * @param count number of items in the batch
+     * @param items the compressed items
+     * @throws IOException from channel operations
+     */
+    void sendCompressedBatch(byte type, int count, byte[] items) throws IOException {
+        beginFrame();
+        header.put(type).putInt(count).putInt(items.length).flip();
+        writeFrame(ByteBuffer.wrap(items));
+    }
+
+    /**
+     * sends an item of a batch frame as (byte type, int key length, key, int length, data, int hash length, hash)
+     *
+     * @param key  the key of the item, e.g. its date
+     * @param type data type of the item
+     * @param data the data of the item, from its position to its limit, e.g. a memory-mapped file
+     * @param hash the hash of the data
+     * @throws IOException from channel operations
+     */
+    void sendBatchItem(byte[] key, byte type, ByteBuffer data, byte[] hash) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(9 + key.length);
+        head.put(type).putInt(key.length).put(key).putInt(data.remaining()).flip();
+        ByteBuffer tail = ByteBuffer.allocate(4 + hash.length);
+        tail.putInt(hash.length).put(hash).flip();
+        writeFully(new ByteBuffer[]{head, data, tail});
+    }
+
+    /**
+     * clears the header for the start of a frame, adding the phase byte if the channel is multiplexed
+     */
+    private void beginFrame() {
+        header.clear();
+        if (multiplexed)
+            header.put(DATA_PHASE);
+    }
+
+    private void writeCheckedFrame(ByteBuffer data, int sum) throws IOException {
+        checksum.clear();
+        checksum.putInt(sum).flip();
+        checkedFrame[1] = data;
+        writeFully(checkedFrame);
+        checkedFrame[1] = null;
+    }
+
+    private void writeFrame(ByteBuffer data) throws IOException {
+        frame[1] = data;
+        writeFully(frame);
+        frame[1] = null;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        single[0] = buffer;
+        writeFully(single);
+        single[0] = null;
+    }
+
+    /**
+     * writes the buffers completely, taking credits for every write if the writes are flow controlled
+     */
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        long remaining;
+        while ((remaining = remaining(buffers)) > 0) {
+            if (credits == null)
+                channel.write(buffers);
+            else
+                writeWithCredits(buffers, remaining);
+        }
+    }
+
+    private static long remaining(ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers)
+            remaining += buffer.remaining();
+        return remaining;
+    }
+
+    /**
+     * takes credits and writes at most that many bytes of the buffers, returning the credits that were not used
+     */
+    private void writeWithCredits(ByteBuffer[] buffers, long remaining) throws IOException {
+        int allowed = credits.acquire((int) Math.min(remaining, Integer.MAX_VALUE));
+        // cut the buffers after the allowed number of bytes
+        int count = 0;
+        long before = 0;
+        while (before + buffers[count].remaining() < allowed)
+            before += buffers[count++].remaining();
+        ByteBuffer cut = buffers[count];
+        int limit = cut.limit();
+        cut.limit(cut.position() + (int) (allowed - before));
+        long written = 0;
+        try {
+            written = channel.write(buffers, 0, count + 1);
+        } finally {
+            cut.limit(limit);
+            credits.release((int) (allowed - written));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package server;
+
+import utils.StratoUtils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * this class accepts the data connections of all clients on the data port
+ * a client sends its session token as soon as its data socket is connected,
+ * and the socket is handed to the client handler waiting for that token.
+ * data sockets with an unknown token are closed. the tokens are read on a small dedicated executor,
+ * never on the session workers, as those block until their data socket is paired.
+ * the sockets are accepted through a channel, so responses can also be written to them with channel operations.
+ */
+final class DataSocketAcceptor implements Runnable {
+
+    private final ServerSocketChannel dataServerSocket;
+    private final Executor handshakeExecutor;
+    private final ConcurrentHashMap<SessionToken, CompletableFuture<Socket>> pendingSockets = new ConcurrentHashMap<>();
+
+    DataSocketAcceptor(ServerSocketChannel dataServerSocket, Executor handshakeExecutor) {
+        this.dataServerSocket = dataServerSocket;
+        this.handshakeExecutor = handshakeExecutor;
+    }
+
+    @Override
+    public void run() {
+        while (dataServerSocket.isOpen()) {
+            try {
+                Socket dataSocket = dataServerSocket.accept().socket();
+                try {
+                    handshakeExecutor.execute(() -> pair(dataSocket));
+                } catch (RejectedExecutionException e) {
+                    closeQuietly(dataSocket);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * reads the token of a data connection and hands the socket to the client that expects it
+     *
+     * @param dataSocket the accepted data socket
+     */
+    private void pair(Socket dataSocket) {
+        try {
+            StratoServer.configureSocket(dataSocket);
+            dataSocket.setSoTimeout(StratoServer.HANDSHAKE_TIMEOUT);
+            byte[] tokenBytes = new byte[StratoUtils.TOKEN_LENGTH];
+            new DataInputStream(dataSocket.getInputStream()).readFully(tokenBytes);
+            dataSocket.setSoTimeout(0);
+            CompletableFuture<Socket> pending = pendingSockets.get(new SessionToken(tokenBytes));
+            if (pending == null || !pending.complete(dataSocket)) {
+                System.err.println("Rejected data connection with unknown token");
+                closeQuietly(dataSocket);
+            }
+        } catch (IOException e) {
+            closeQuietly(dataSocket);
+        }
+    }
+
+    /**
+     * marks a token as allowed to connect a data socket. called when the client is registered,
+     * so that the socket can be accepted even if it arrives before the handler waits for it.
+     *
+     * @param token the token of the registered client
+     */
+    void expect(SessionToken token) {
+        pendingSockets.putIfAbsent(token, new CompletableFuture<>());
+    }
+
+    /**
+     * waits for the data socket of the given token
+     *
+     * @param token   the token of the client
+     * @param timeout maximum waiting time in milliseconds
+     * @return the paired data socket
+     * @throws IOException if the socket does not connect in time or the token is not expected
+     */
+    Socket await(SessionToken token, long timeout) throws IOException {
+        CompletableFuture<Socket> pending = pendingSockets.get(token);
+        if (pending == null)
+            throw new IOException("No data connection expected for this token");
+        try {
+            Socket dataSocket = pending.get(timeout, TimeUnit.MILLISECONDS);
+            if (dataSocket == null) // cancelled while waiting
+                throw new IOException("Data connection was cancelled");
+            return dataSocket;
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("Data connection was not established in time");
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        } finally {
+            pendingSockets.remove(token, pending);
+        }
+    }
+
+    /**
+     * stops expecting a data socket for the given token, closing it if it connected but was never taken
+     *
+     * @param token the token of the client
+     */
+    void cancel(SessionToken token) {
+        CompletableFuture<Socket> pending = pendingSockets.remove(token);
+        if (pending != null && !pending.complete(null)) {
+            Socket unclaimed = pending.getNow(null);
+            if (unclaimed != null)
+                closeQuietly(unclaimed);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
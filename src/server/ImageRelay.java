@@ -0,0 +1,200 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * this class shares the download of an APOD image between the clients that stream it at the same time
+ * a single thread reads the image from upstream into a temporary spool file, adding it to the image store as it goes,
+ * and every client reads the spool through its own stream, waiting for the bytes that are not downloaded yet.
+ * the download runs at the pace of upstream whatever the speed of the clients, and clients joining late
+ * start from the first byte. memory does not grow with the image: the bytes are kept in the spool file,
+ * which is deleted once the download and the last stream are closed.
+ */
+final class ImageRelay implements Runnable {
+
+    private final SingleFlight.Call<InputStream> source;
+    private final ImageStore store;
+    private final String date;
+    private FileChannel spool; // opened by the download, read by the streams at their own positions
+    private long downloaded;
+    private boolean finished;
+    private IOException failure;
+    private int references = 1; // the download and every open stream
+
+    /**
+     * @param source opens the upstream stream of the image
+     * @param store  the image store the image is added to
+     * @param date   the APOD date of the image
+     */
+    ImageRelay(SingleFlight.Call<InputStream> source, ImageStore store, String date) {
+        this.source = source;
+        this.store = store;
+        this.date = date;
+    }
+
+    /**
+     * downloads the image, making every chunk available to the readers as soon as it is written to the spool
+     */
+    @Override
+    public void run() {
+        ImageStore.Writer writer = store.openWriter(date);
+        try (InputStream image = source.call()) {
+            openSpool();
+            byte[] buffer = new byte[StratoServer.STREAM_CHUNK_SIZE];
+            int length;
+            while ((length = image.read(buffer)) != -1) {
+                if (length == 0)
+                    continue;
+                writer = storeChunk(writer, buffer, length);
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+                while (chunk.hasRemaining())
+                    spool.write(chunk, downloaded + chunk.position());
+                advance(length);
+            }
+            if (writer != null)
+                commit(writer);
+            finish(null);
+        } catch (IOException | RuntimeException e) {
+            if (writer != null)
+                writer.abort();
+            finish(e instanceof IOException ? (IOException) e : new IOException(e));
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * ends a relay whose download could not be started, failing the streams that joined it
+     *
+     * @param e the reason
+     */
+    void cancel(IOException e) {
+        finish(e);
+        release();
+    }
+
+    /**
+     * @return a stream of the image from its first byte, which waits for the bytes that are not downloaded yet,
+     * or null if the relay is over and its spool is deleted
+     */
+    synchronized InputStream newReader() {
+        if (references == 0)
+            return null;
+        references++;
+        return new InputStream() {
+            private long position;
+            private boolean closed;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (closed)
+                    throw new IOException("Stream closed");
+                if (len == 0)
+                    return 0;
+                long available = await(position);
+                if (available == -1)
+                    return -1;
+                int read = spool.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available - position)), position);
+                position += read;
+                return read;
+            }
+
+            @Override
+            public void close() {
+                if (closed)
+                    return;
+                closed = true;
+                release();
+            }
+        };
+    }
+
+    private synchronized void openSpool() throws IOException {
+        spool = FileChannel.open(Files.createTempFile("strato-relay-", ".tmp"),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    private synchronized void advance(int length) {
+        downloaded += length;
+        notifyAll();
+    }
+
+    private synchronized void finish(IOException e) {
+        finished = true;
+        failure = e;
+        notifyAll();
+    }
+
+    /**
+     * waits for the bytes after a position of the image
+     *
+     * @param position the position of a stream in the image
+     * @return the number of bytes downloaded, more than the position, or -1 after the last byte
+     * @throws IOException if the download failed
+     */
+    private synchronized long await(long position) throws IOException {
+        while (downloaded <= position && !finished) {
+            try {
+                wait(); // the download fails on its own after the upstream read timeout
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        if (downloaded > position)
+            return downloaded;
+        if (failure != null)
+            throw new IOException("Image could not be downloaded", failure);
+        return -1;
+    }
+
+    /**
+     * drops a reference to the spool, deleting it with the last one
+     */
+    private synchronized void release() {
+        if (--references > 0 || spool == null)
+            return;
+        try {
+            spool.close();
+        } catch (IOException e) {
+            System.err.println("Could not delete relay spool: " + e.getMessage());
+        }
+    }
+
+    /**
+     * writes a chunk to the image store. storing is given up if it fails, without affecting the relay.
+     *
+     * @return the writer, or null if storing the image was given up
+     */
+    private static ImageStore.Writer storeChunk(ImageStore.Writer writer, byte[] chunk, int length) {
+        if (writer == null)
+            return null;
+        try {
+            writer.write(chunk, 0, length);
+            return writer;
+        } catch (IOException e) {
+            System.err.println("Could not store image: " + e.getMessage());
+            writer.abort();
+            return null;
+        }
+    }
+
+    private static void commit(ImageStore.Writer writer) {
+        try {
+            writer.commit();
+        } catch (IOException e) {
+            System.err.println("Could not store image: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * this class keeps downloaded APOD images on disk, so they survive restarts and are served without reading them into memory
+ * images are stored once per content hash in "objects", and "dates" maps each APOD date to the hash of its image.
+ * the total size of the stored images is capped, and the least recently used images are evicted first
+ * (the modification time of an image is its last use, so the order is kept across restarts).
+ */
+final class ImageStore {
+
+    private final Path objects;
+    private final Path dates;
+    private final long capacity;
+
+    private final ConcurrentHashMap<String, String> dateIndex = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Long> images = new LinkedHashMap<>(16, 0.75f, true); // hash -> size, LRU order
+    private long totalSize;
+
+    /**
+     * opens the store in the given directory, creating it if needed
+     *
+     * @param directory the directory of the store
+     * @param capacity  the maximum total size of the stored images in bytes
+     * @throws IOException from file operations
+     */
+    ImageStore(Path directory, long capacity) throws IOException {
+        objects = Files.createDirectories(directory.resolve("objects"));
+        dates = Files.createDirectories(directory.resolve("dates"));
+        this.capacity = capacity;
+        loadImages();
+        loadDates();
+        System.out.println("Image store: " + images.size() + " images, " + totalSize + " bytes.");
+    }
+
+    private void loadImages() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(objects)) {
+            for (Path file : stream)
+                if (file.getFileName().toString().endsWith(".tmp"))
+                    Files.delete(file); // unfinished write
+                else
+                    files.add(file);
+        }
+        files.sort((a, b) -> lastModified(a).compareTo(lastModified(b))); // least recently used first
+        for (Path file : files) {
+            long size = Files.size(file);
+            images.put(file.getFileName().toString(), size);
+            totalSize += size;
+        }
+    }
+
+    private void loadDates() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dates)) {
+            for (Path ref : stream) {
+                if (ref.getFileName().toString().endsWith(".tmp")) {
+                    Files.delete(ref); // unfinished write
+                    continue;
+                }
+                String hash = new String(Files.readAllBytes(ref), StandardCharsets.US_ASCII).trim();
+                if (images.containsKey(hash))
+                    dateIndex.put(ref.getFileName().toString(), hash);
+                else
+                    Files.deleteIfExists(ref); // the image was evicted
+            }
+        }
+    }
+
+    /**
+     * finds the stored image of an APOD date and marks it as recently used
+     *
+     * @param date the APOD date
+     * @return the path of the image file, or null if the image of the date is not stored
+     */
+    Path lookup(String date) {
+        String hash = dateIndex.get(date);
+        if (hash == null)
+            return null;
+        synchronized (this) {
+            if (images.get(hash) == null) { // evicted
+                dateIndex.remove(date, hash);
+                return null;
+            }
+        }
+        Path file = objects.resolve(hash);
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * stores the image of an APOD date, evicting the least recently used images if the store is full
+     *
+     * @param date  the APOD date, only dates of the form yyyy-mm-dd are stored
+     * @param image the image as a byte array
+     */
+    void store(String date, byte[] image) {
+        Writer writer = openWriter(date);
+        if (writer == null)
+            return;
+        try {
+            writer.write(image, 0, image.length);
+            writer.commit();
+        } catch (IOException e) {
+            writer.abort();
+            System.err.println("Could not store image: " + e.getMessage());
+        }
+    }
+
+    /**
+     * opens a writer that stores the image of an APOD date piece by piece, e.g. while it is being relayed
+     *
+     * @param date the APOD date, only dates of the form yyyy-mm-dd are stored
+     * @return the writer, or null if the date cannot be stored
+     */
+    Writer openWriter(String date) {
+        if (!isValidDate(date))
+            return null;
+        try {
+            return new Writer(date);
+        } catch (IOException e) {
+            System.err.println("Could not store image: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * this class writes an image to a temporary file while hashing it,
+     * and moves it into the store under its content hash once it is complete
+     */
+    final class Writer {
+        private final String date;
+        private final Path temporary;
+        private final OutputStream output;
+        private final MessageDigest digest;
+        private long size;
+
+        private Writer(String date) throws IOException {
+            this.date = date;
+            temporary = Files.createTempFile(objects, date, ".tmp");
+            output = Files.newOutputStream(temporary);
+            digest = newDigest();
+        }
+
+        void write(byte[] data, int offset, int length) throws IOException {
+            output.write(data, offset, length);
+            digest.update(data, offset, length);
+            size += length;
+        }
+
+        /**
+         * adds the written image to the store
+         *
+         * @throws IOException from file operations
+         */
+        void commit() throws IOException {
+            output.close();
+            if (size > capacity) {
+                Files.deleteIfExists(temporary);
+                return;
+            }
+            String hash = String.format("%064x", new BigInteger(1, digest.digest()));
+            Path file = objects.resolve(hash);
+            if (Files.exists(file))
+                Files.delete(temporary);
+            else
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            writeAtomically(dates.resolve(date), hash.getBytes(StandardCharsets.US_ASCII));
+            add(date, hash, size);
+        }
+
+        /**
+         * discards the written bytes
+         */
+        void abort() {
+            try {
+                output.close();
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                System.err.println("Could not discard image: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * records a stored image, evicting the least recently used images if the store is full
+     */
+    private void add(String date, String hash, long size) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (images.put(hash, size) == null)
+                totalSize += size;
+            Iterator<Map.Entry<String, Long>> eldest = images.entrySet().iterator();
+            while (totalSize > capacity && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getKey().equals(hash))
+                    continue;
+                totalSize -= entry.getValue();
+                evicted.add(entry.getKey());
+                eldest.remove();
+            }
+        }
+        dateIndex.put(date, hash);
+        for (String evictedHash : evicted) {
+            try {
+                Files.deleteIfExists(objects.resolve(evictedHash));
+            } catch (IOException e) {
+                System.err.println("Could not evict image: " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isValidDate(String date) {
+        try {
+            LocalDate.parse(date);
+            return true;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private static void writeAtomically(Path file, byte[] content) throws IOException {
+        Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        Files.write(temporary, content);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package server;
+
+import utils.DataHash;
+import utils.StratoUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * this class serves the atmospheric pressure data of the Insight feed
+ * the feed is parsed once into an array of sols, each holding its pressure values and the payload sent for it,
+ * already serialized and hashed, so a sol is served with an array lookup. for the "deflate" option, the batch of all sols
+ * is compressed once per refresh, since the sols only change with the feed.
+ * the feed is refreshed on a schedule, and is loaded on first use if it was not loaded yet.
+ */
+final class InsightService {
+
+    /**
+     * the pressure data of a sol, and the payload sent for it with its hash in both formats
+     */
+    static final class Sol {
+        final double average;
+        final long samples;
+        final double minimum;
+        final double maximum;
+        final byte[] payload;
+        final String hash;
+        final String checksum; // CRC32C format, null if the JVM does not support it
+
+        Sol(double average, long samples, double minimum, double maximum) {
+            this.average = average;
+            this.samples = samples;
+            this.minimum = minimum;
+            this.maximum = maximum;
+            payload = ("{\"av\": " + average + ", \"ct\": " + samples + ", \"mn\": " + minimum + ", \"mx\": " + maximum + "}")
+                    .getBytes(StandardCharsets.UTF_8);
+            hash = StratoUtils.generateHash(2, payload);
+            checksum = DataHash.isCrc32cSupported() ? StratoUtils.generateHash(2, payload, true) : null;
+        }
+    }
+
+    // the feed holds the last seven sols
+    private static final int MAX_SOLS = 7;
+
+    /**
+     * the items of the batch of all sols ("1" to the number of sols), serialized as in a type 4 batch frame and compressed
+     */
+    static final class CompressedBatch {
+        final int count;
+        final byte[] hashed; // with the hashes in the original format
+        final byte[] checksummed; // with CRC32C hashes, null if the JVM does not support it
+
+        private CompressedBatch(int count, byte[] hashed, byte[] checksummed) {
+            this.count = count;
+            this.hashed = hashed;
+            this.checksummed = checksummed;
+        }
+    }
+
+    private final SingleFlight.Call<String> feed;
+    private volatile Sol[] sols; // null until the feed is loaded
+    private volatile CompressedBatch compressedBatch; // null if the batch is below DEFLATE_THRESHOLD or does not shrink
+
+    /**
+     * @param feed fetches the Insight feed, returning null if it is not available
+     */
+    InsightService(SingleFlight.Call<String> feed) {
+        this.feed = feed;
+    }
+
+    /**
+     * starts a background thread that loads the feed now, then refreshes it periodically
+     *
+     * @param interval time between refreshes in milliseconds
+     */
+    void startRefresh(long interval) {
+        ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+                ConnectionExecutors.namedFactory("strato-insight-"));
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (IOException e) {
+                System.err.println("Could not refresh the Insight feed: " + e.getMessage());
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the sols of the feed, loading it if it was not loaded yet, or null if the feed is not available
+     * @throws IOException from stream and socket operations
+     */
+    Sol[] getSols() throws IOException {
+        Sol[] current = sols;
+        return current != null ? current : refresh();
+    }
+
+    /**
+     * @return the compressed batch of all sols, loading the feed if it was not loaded yet,
+     * or null if the feed is not available or the batch is not worth compressing
+     * @throws IOException from stream and socket operations
+     */
+    CompressedBatch getCompressedBatch() throws IOException {
+        getSols();
+        return compressedBatch;
+    }
+
+    /**
+     * @param sols the sols of the feed
+     * @param sol  the sol number given by the user, starting at 1
+     * @return the sol, or null if the number is invalid or the feed has no pressure data for it
+     */
+    static Sol find(Sol[] sols, String sol) {
+        try {
+            int index = Integer.parseInt(sol.trim()) - 1;
+            return index >= 0 && index < sols.length ? sols[index] : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * fetches and parses the feed, replacing the served sols
+     *
+     * @return the parsed sols, or null if the feed is not available
+     * @throws IOException from stream and socket operations
+     */
+    private Sol[] refresh() throws IOException {
+        String response = feed.call();
+        if (response == null)
+            return null;
+        double[][] pressures = StratoUtils.extractPressures(response, MAX_SOLS);
+        Sol[] parsed = new Sol[pressures.length];
+        for (int i = 0; i < pressures.length; i++) {
+            double[] pressure = pressures[i]; // av, ct, mn, mx
+            boolean complete = true;
+            for (double value : pressure)
+                complete &= !Double.isNaN(value);
+            if (complete)
+                parsed[i] = new Sol(pressure[0], (long) pressure[1], pressure[2], pressure[3]);
+        }
+        byte[] hashed = compress(parsed, false);
+        byte[] checksummed = DataHash.isCrc32cSupported() ? compress(parsed, true) : null;
+        compressedBatch = hashed == null ? null : new CompressedBatch(parsed.length, hashed, checksummed);
+        sols = parsed;
+        return parsed;
+    }
+
+    /**
+     * serializes the batch of all sols as the items of a type 4 batch frame, a sol without pressure data
+     * being a failed item, and compresses it
+     *
+     * @param crc32c whether the items carry CRC32C hashes
+     * @return the compressed items, or null if they are below DEFLATE_THRESHOLD or do not shrink
+     * @throws IOException from stream operations
+     */
+    private static byte[] compress(Sol[] sols, boolean crc32c) throws IOException {
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        DataOutputStream writer = new DataOutputStream(serialized);
+        for (int i = 0; i < sols.length; i++) {
+            byte[] key = String.valueOf(i + 1).getBytes(StandardCharsets.UTF_8);
+            byte[] data = sols[i] == null ? "Invalid Argument".getBytes(StandardCharsets.UTF_8) : sols[i].payload;
+            byte[] hash = sols[i] == null ? new byte[0] : (crc32c ? sols[i].checksum : sols[i].hash).getBytes(StandardCharsets.UTF_8);
+            writer.writeByte(sols[i] == null ? 0 : 2);
+            writer.writeInt(key.length);
+            writer.write(key);
+            writer.writeInt(data.length);
+            writer.write(data);
+            writer.writeInt(hash.length);
+            writer.write(hash);
+        }
+        if (serialized.size() < StratoServer.DEFLATE_THRESHOLD)
+            return null;
+        byte[] compressed = StratoUtils.deflate(serialized.toByteArray());
+        return compressed.length < serialized.size() ? compressed : null;
+    }
+}
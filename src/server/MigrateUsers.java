@@ -0,0 +1,67 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * this class is a tool that replaces the plaintext passwords of a users file with salted PBKDF2 hashes
+ * usage: MigrateUsers [users file] [iterations]
+ * passwords that are already hashed are kept as they are, and the file is replaced in a single step.
+ */
+public class MigrateUsers {
+
+    private static final int DEFAULT_ITERATIONS = 120000;
+
+    public static void main(String[] args) {
+        Path usersFile = Paths.get(args.length > 0 ? args[0] : System.getProperty("user.dir") + "/users.txt");
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+        try {
+            int migrated = migrate(usersFile, iterations);
+            System.out.println("Migrated " + migrated + " passwords.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * rewrites the users file with hashed passwords
+     *
+     * @param usersFile  the path of the users file
+     * @param iterations the PBKDF2 cost of the new hashes
+     * @return the number of passwords that were hashed
+     * @throws IOException from file operations
+     */
+    static int migrate(Path usersFile, int iterations) throws IOException {
+        Path migratedFile = usersFile.resolveSibling(usersFile.getFileName() + ".migrating");
+        int migrated = 0;
+        try (BufferedReader reader = Files.newBufferedReader(usersFile, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(migratedFile, StandardCharsets.UTF_8)) {
+            String username;
+            while ((username = reader.readLine()) != null) {
+                if (username.isEmpty())
+                    continue;
+                String password = reader.readLine();
+                if (password == null)
+                    break;
+                if (!password.startsWith(CredentialVerifier.PBKDF2_PREFIX)) {
+                    password = CredentialVerifier.hash(password, iterations);
+                    migrated++;
+                }
+                writer.write(username);
+                writer.newLine();
+                writer.write(password);
+                writer.newLine();
+                writer.newLine();
+                reader.readLine(); // skip empty line
+            }
+        }
+        Files.move(migratedFile, usersFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return migrated;
+    }
+}
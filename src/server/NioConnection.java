@@ -0,0 +1,317 @@
+package server;
+
+import utils.MessageCodec;
+import utils.StratoUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * this class is the per-connection state machine of the NIO engine
+ * it collects bytes from the command channel until a whole message is available
+ * (a 6-byte auth header or a 23-byte query header, followed by the payload),
+ * then hands the message to the StratoClientHandler on a worker thread.
+ * no more bytes are read until the handler is done, so messages are processed in order.
+ * output is queued for the loop thread to write, up to MAX_OUTBOUND_BYTES per connection. other threads wait
+ * while the queue is full, so a client that reads slowly does not make the server hold unbounded output.
+ */
+final class NioConnection {
+
+    // upper bound for a single message, larger frames close the connection
+    private static final int MAX_MESSAGE_SIZE = 1 << 20;
+
+    private enum State {READING, PROCESSING, CLOSING}
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final StratoServer server;
+    private final StratoClientHandler handler;
+    private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+    private final Object outputLock = new Object();
+    private long queuedBytes; // guarded by outputLock
+    private volatile boolean closed;
+    private final byte[] tokenBuffer = new byte[StratoUtils.TOKEN_LENGTH]; // reused for every received token
+    private final MessageCodec.Frame frame = new MessageCodec.Frame(); // reused for every received message
+
+    private SelectionKey key;
+    private ByteBuffer input = ByteBuffer.allocate(4096);
+    private State state = State.READING;
+    private long lastActivity = System.currentTimeMillis();
+
+    NioConnection(NioEventLoop loop, SocketChannel channel, StratoServer server) {
+        this.loop = loop;
+        this.channel = channel;
+        this.server = server;
+        handler = new StratoClientHandler(channel.socket(), server);
+    }
+
+    /**
+     * attaches the selection key and lets the handler send the welcoming messages
+     *
+     * @param key the key of the channel in the loop's selector
+     * @throws IOException from stream and socket operations
+     */
+    void open(SelectionKey key) throws IOException {
+        this.key = key;
+        handler.open(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                enqueue(ByteBuffer.wrap(copy));
+            }
+        });
+    }
+
+    /**
+     * reads the available bytes and dispatches a message if one is complete
+     */
+    void onReadable() {
+        try {
+            if (channel.read(input) == -1) {
+                System.err.println("Lost connection with client");
+                handler.disconnectClient();
+                close();
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Lost connection with client");
+            handler.disconnectClient();
+            close();
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        dispatch();
+    }
+
+    /**
+     * parses the buffered bytes, and if a whole message is available passes it to the handler on a worker thread
+     */
+    private void dispatch() {
+        if (state != State.READING)
+            return;
+        input.flip();
+        if (!input.hasRemaining()) {
+            input.compact();
+            return;
+        }
+        byte phase = input.get(input.position());
+        if (MessageCodec.headerLength(phase) < 0) { // unknown phase, let the handler reject it
+            input.get();
+            input.compact();
+            process(phase, null, (byte) 0, new byte[0]);
+            return;
+        }
+        int needed = MessageCodec.decode(input, frame);
+        if (needed < 0 || needed > MessageCodec.QUERY_HEADER_LENGTH + MAX_MESSAGE_SIZE) {
+            System.err.println("Invalid message length from client " + handler.getClientPort());
+            handler.disconnectClient();
+            close();
+            return;
+        }
+        if (needed > 0) {
+            input.compact();
+            if (input.capacity() < needed) {
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+            return;
+        }
+
+        if (phase == 1)
+            frame.copyToken(tokenBuffer);
+        byte[] payload = frame.copyPayload();
+        input.compact();
+        process(phase, tokenBuffer, frame.getType(), payload);
+    }
+
+    /**
+     * stops reading and runs the handler for a message on the connection executor
+     */
+    private void process(byte phase, byte[] token, byte type, byte[] payload) {
+        state = State.PROCESSING;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        try {
+            server.getConnectionExecutor().execute(() -> {
+                boolean keepOpen;
+                try {
+                    keepOpen = handler.handleMessage(phase, token, type, payload);
+                    handler.flushMessages();
+                } catch (IOException | RuntimeException e) { // the connection must leave the processing state either way
+                    e.printStackTrace();
+                    keepOpen = false;
+                }
+                boolean result = keepOpen;
+                runInLoop(() -> afterMessage(result));
+            });
+        } catch (RejectedExecutionException e) {
+            System.err.println("Server busy, dropping client " + handler.getClientPort());
+            handler.disconnectClient();
+            close();
+        }
+    }
+
+    /**
+     * resumes reading after a message was handled, or closes the connection if it should terminate
+     *
+     * @param keepOpen whether the handled message keeps the connection open
+     */
+    private void afterMessage(boolean keepOpen) {
+        if (!key.isValid())
+            return;
+        if (!keepOpen) {
+            handler.disconnectClient();
+            closeAfterFlush();
+            return;
+        }
+        state = State.READING;
+        lastActivity = System.currentTimeMillis();
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        dispatch(); // a following message may already be buffered
+    }
+
+    /**
+     * times out the connection if it has been idle for too long outside of request processing
+     *
+     * @param now the current time in milliseconds
+     */
+    void checkTimeout(long now) {
+        if (state != State.READING || handler.isProcessing())
+            return;
+        if (now - lastActivity > StratoUtils.SOCKET_TIMEOUT_DURATION) {
+            handler.sendTimeOutMessage();
+            handler.disconnectClient();
+            closeAfterFlush();
+        }
+    }
+
+    /**
+     * queues bytes to be written to the channel by the loop thread
+     *
+     * @param buffer the bytes to be written
+     * @throws IOException if the connection is closed, or the queue stays full for the socket timeout
+     */
+    private void enqueue(ByteBuffer buffer) throws IOException {
+        awaitRoom(buffer.remaining());
+        output.add(buffer);
+        runInLoop(this::flush);
+    }
+
+    /**
+     * waits until the queue has room for the given number of bytes, and counts them as queued
+     * the loop thread itself never waits, since it is the one emptying the queue.
+     * a write larger than the limit is let through once the queue is empty.
+     */
+    private void awaitRoom(int length) throws IOException {
+        synchronized (outputLock) {
+            long deadline = System.currentTimeMillis() + StratoUtils.SOCKET_TIMEOUT_DURATION;
+            while (queuedBytes > 0 && queuedBytes + length > StratoServer.MAX_OUTBOUND_BYTES && !loop.inLoop()) {
+                if (closed)
+                    throw new IOException("Connection is closed");
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    throw new SocketTimeoutException("Client is not reading its output");
+                try {
+                    outputLock.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            queuedBytes += length;
+        }
+    }
+
+    private void written(int length) {
+        synchronized (outputLock) {
+            queuedBytes -= length;
+            outputLock.notifyAll();
+        }
+    }
+
+    /**
+     * writes as many queued bytes as the channel accepts, and waits for writability if some remain
+     */
+    void flush() {
+        if (!key.isValid())
+            return;
+        try {
+            ByteBuffer head;
+            while ((head = output.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining())
+                    break;
+                output.poll();
+                written(head.limit());
+            }
+        } catch (IOException e) {
+            System.err.println("Lost connection with client");
+            handler.disconnectClient();
+            close();
+            return;
+        }
+        if (output.isEmpty()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (state == State.CLOSING)
+                close();
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * runs a task of this connection on the loop thread, closing the connection if the task fails
+     */
+    private void runInLoop(Runnable task) {
+        loop.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        });
+    }
+
+    /**
+     * closes the connection after an unexpected error while it was served by the loop thread
+     *
+     * @param e the error
+     */
+    void fail(RuntimeException e) {
+        if (closed)
+            return;
+        System.err.println("Closing client " + handler.getClientPort() + " after an error: " + e);
+        handler.disconnectClient();
+        close();
+    }
+
+    private void closeAfterFlush() {
+        state = State.CLOSING;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        flush();
+    }
+
+    private void close() {
+        state = State.CLOSING;
+        closed = true;
+        synchronized (outputLock) {
+            outputLock.notifyAll(); // release writers waiting for room
+        }
+        key.cancel();
+        handler.closeConnection();
+    }
+}
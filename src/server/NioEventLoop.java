@@ -0,0 +1,125 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * this class is a single selector thread of the NIO engine
+ * all operations on its connections' keys are run on this thread, other threads post them through execute().
+ */
+final class NioEventLoop implements Runnable {
+
+    // how often (in milliseconds) idle connections are checked for timeouts
+    private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+
+    private final StratoServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+
+    NioEventLoop(StratoServer server) throws IOException {
+        this.server = server;
+        selector = Selector.open();
+    }
+
+    /**
+     * registers a newly accepted connection with this loop
+     *
+     * @param channel the non-blocking command channel of the client
+     */
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                NioConnection connection = new NioConnection(this, channel, server);
+                connection.open(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    /**
+     * runs a task on the loop thread
+     *
+     * @param task the task to be run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @return whether the calling thread is the loop thread
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        long lastTimeoutCheck = System.currentTimeMillis();
+        while (true) {
+            try {
+                selector.select(TIMEOUT_CHECK_INTERVAL);
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            connection.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+                    } catch (RuntimeException e) { // only the failing connection is closed, the others are still served
+                        connection.fail(e);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastTimeoutCheck >= TIMEOUT_CHECK_INTERVAL) {
+                    lastTimeoutCheck = now;
+                    for (SelectionKey key : selector.keys()) {
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid())
+                                connection.checkTimeout(now);
+                        } catch (RuntimeException e) {
+                            connection.fail(e);
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) { // the loop keeps serving its other connections
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * runs the posted tasks, a failing task is logged and does not stop the loop
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * this class is the non-blocking alternative to the blocking server engine
+ * command connections are accepted here and spread over a handful of selector event loops,
+ * which read complete messages without blocking and pass them to the connection's StratoClientHandler.
+ */
+final class NioServerEngine {
+
+    private final StratoServer server;
+    private final NioEventLoop[] loops;
+
+    NioServerEngine(StratoServer server, int loopCount) throws IOException {
+        this.server = server;
+        loops = new NioEventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(server);
+            Thread loopThread = new Thread(loops[i], "strato-event-loop-" + (i + 1));
+            loopThread.start();
+        }
+    }
+
+    /**
+     * accepts command connections and assigns them to the event loops in turn
+     *
+     * @throws IOException from stream and socket operations
+     */
+    void serve() throws IOException {
+        ServerSocketChannel acceptor = ServerSocketChannel.open();
+        acceptor.bind(new InetSocketAddress(StratoServer.AUTH_PORT));
+        System.out.println("Server initiated (nio engine, " + loops.length + " event loops).");
+        int next = 0;
+        while (true) {
+            SocketChannel channel = acceptor.accept();
+            channel.configureBlocking(false);
+            StratoServer.configureSocket(channel.socket());
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+            System.out.println("Client Connected.");
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * this class lets the data writer write to a stream instead of a socket channel
+ * it is used to send data frames on the command connection of multiplexed clients.
+ * the buffers of a write are copied into a reused array and written to the stream together,
+ * so a frame header and its data leave in one write. closing the channel does not close the stream.
+ */
+final class OutputStreamChannel implements GatheringByteChannel {
+
+    private final OutputStream output;
+    private final byte[] transfer;
+    private volatile boolean open = true;
+
+    /**
+     * @param output       the stream written to
+     * @param transferSize size of the array buffers are copied into before they are written
+     */
+    OutputStreamChannel(OutputStream output, int transferSize) {
+        this.output = output;
+        transfer = new byte[transferSize];
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        return (int) write(new ByteBuffer[]{source}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources) throws IOException {
+        return write(sources, 0, sources.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+        if (!open)
+            throw new IOException("Channel is closed");
+        long written = 0;
+        int count = 0;
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer source = sources[i];
+            while (source.hasRemaining()) {
+                int part = Math.min(source.remaining(), transfer.length - count);
+                source.get(transfer, count, part);
+                count += part;
+                written += part;
+                if (count == transfer.length) {
+                    output.write(transfer, 0, count);
+                    count = 0;
+                }
+            }
+        }
+        if (count > 0)
+            output.write(transfer, 0, count);
+        output.flush();
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,92 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * this class is a size-bounded cache of API responses
+ * every entry has its own time to live, and when the cache is full the least recently used entry is evicted.
+ * hits, misses, and evictions are counted for monitoring.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the cached responses
+ */
+final class ResponseCache<K, V> {
+
+    private static final class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity the maximum number of cached responses
+     */
+    ResponseCache(int capacity) {
+        this.capacity = capacity;
+        entries = new LinkedHashMap<>(16, 0.75f, true); // access order, eldest is least recently used
+    }
+
+    /**
+     * @param key the key of the response
+     * @return the cached response, or null if it is not cached or has expired
+     */
+    synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * caches a response, evicting expired entries and then the least recently used ones if the cache is full
+     *
+     * @param key   the key of the response
+     * @param value the response
+     * @param ttl   how long (in milliseconds) the response stays valid
+     */
+    synchronized void put(K key, V value, long ttl) {
+        if (ttl <= 0)
+            return;
+        long now = System.currentTimeMillis();
+        entries.put(key, new Entry<>(value, now + ttl));
+        if (entries.size() <= capacity)
+            return;
+        Iterator<Entry<V>> iterator = entries.values().iterator();
+        while (iterator.hasNext())
+            if (iterator.next().expiresAt <= now)
+                iterator.remove();
+        iterator = entries.values().iterator();
+        while (entries.size() > capacity && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("entries=%d, hits=%d, misses=%d, evictions=%d",
+                entries.size(), hits.sum(), misses.sum(), evictions.sum());
+    }
+}
@@ -1,12 +1,9 @@
 package server;
 
-import utils.StratoUtils;
+import utils.ProtocolOptions;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.File;
 import java.io.IOException;
-import java.util.Scanner;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * this class handles the authentication related operations of the server side
@@ -14,10 +11,7 @@ import java.util.Scanner;
 public class ServerAuthModule {
 
     private final StratoClientHandler server;
-    private final DataInputStream commandReader;
-    private final DataOutputStream commandWriter;
-
-    private final File usersFile;
+    private final CommandChannelWriter commandWriter;
 
     int passwordAttempts = 2;
     String inputUsername;
@@ -27,24 +21,27 @@ public class ServerAuthModule {
     private String token;
 
 
-    public ServerAuthModule(StratoClientHandler server, DataInputStream commandReader, DataOutputStream commandWriter) {
+    public ServerAuthModule(StratoClientHandler server, CommandChannelWriter commandWriter) {
         this.server = server;
-        this.commandReader = commandReader;
         this.commandWriter = commandWriter;
-        usersFile = new File(System.getProperty("user.dir") + "/users.txt");
     }
 
     /**
      * processes the received authentication message based on the type and content
      * takes action based on the message type.
      *
+     * @param type         the message type
+     * @param payloadBytes the message payload
      * @return whether the received message should terminate the connection
      * @throws IOException from stream and socket operations
      */
-    boolean processAuthMessage() throws IOException {
-        byte type = commandReader.readByte();
-        String payload = new String(readMessage());
+    boolean processAuthMessage(byte type, byte[] payloadBytes) throws IOException {
+        String payload = new String(payloadBytes);
 
+        if (type == 4 && inputUsername == null) { // Auth_Options, only before signing in
+            sendAuthMessage((byte) 4, server.negotiateOptions(payload));
+            return true;
+        }
         if (type != 0) { // not Auth_Request
             System.out.println("[FATAL] UNKNOWN MESSAGE TYPE");
             return false;
@@ -62,14 +59,18 @@ public class ServerAuthModule {
         }
 
         inputPassword = payload;
-        if (inputPassword.equals(correctPassword)) {
+        boolean correct;
+        try {
+            correct = server.verifyPassword(inputPassword, correctPassword);
+        } catch (RejectedExecutionException e) {
+            sendAuthMessage((byte) 2, "Server is busy, try again later.");
+            return false;
+        }
+        if (correct) {
             token = server.registerClient(inputUsername);
-            if (token == null) { // Client with this username is already signed in
-                sendAuthMessage((byte) 2, "User already signed in.");
-                return false;
-            }
             sendAuthMessage((byte) 3, "Authenticated successfully!," + token); // send token
-            sendAuthMessage((byte) 6, "" + StratoServer.DATA_PORT); // send query connection info
+            // send query connection info, port 0 if data is multiplexed on this connection
+            sendAuthMessage((byte) 6, server.hasOption(ProtocolOptions.MUX) ? "0" : "" + StratoServer.DATA_PORT);
             server.initializeQueryPhase();
             return true;
         }
@@ -83,38 +84,14 @@ public class ServerAuthModule {
     }
 
     /**
-     * reads the payload of the message from the command socket input stream
-     *
-     * @return the payload as an array of bytes
-     * @throws IOException from stream and socket operations
-     */
-    private byte[] readMessage() throws IOException {
-        int length = commandReader.readInt();
-        byte[] message = new byte[length];
-        commandReader.readFully(message, 0, message.length);
-        return message;
-    }
-
-    /**
-     * checks the given username with those in the list of users
+     * checks the given username with those in the user store
      *
      * @param name the given username
-     * @return whether the given username matches a user in the list of users
-     * @throws IOException from stream and socket operations
+     * @return whether the given username matches a user in the user store
      */
-    private boolean isValidUsername(String name) throws IOException {
-        Scanner fileScanner = new Scanner(usersFile);
-        String username;
-        while (fileScanner.hasNextLine()) {
-            username = fileScanner.nextLine();
-            if (name.equals(username)) {
-                correctPassword = fileScanner.nextLine();
-                return true;
-            }
-            fileScanner.nextLine(); // skip password line
-            fileScanner.nextLine(); // skip empty line
-        }
-        return false;
+    private boolean isValidUsername(String name) {
+        correctPassword = server.getPassword(name);
+        return correctPassword != null;
     }
 
     /**
@@ -124,8 +101,7 @@ public class ServerAuthModule {
      * @throws IOException from stream and socket operations
      */
     private void sendAuthMessage(byte type, String payload) throws IOException {
-        byte[] message = StratoUtils.makeAuthMessage(type, payload);
-        commandWriter.write(message);
+        commandWriter.writeAuthMessage(type, payload);
     }
 
     public String getToken() {
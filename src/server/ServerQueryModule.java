@@ -1,57 +1,92 @@
 package server;
 
+import utils.DataHash;
+import utils.ProtocolOptions;
 import utils.StratoUtils;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * this class handles the query related operations of the server side
  */
 public class ServerQueryModule {
+    // maximum number of ranges in a Query_Ranges message
+    private static final int MAX_RANGES = 1024;
+
     private final StratoClientHandler server;
-    private final DataInputStream commandReader;
-    private final DataOutputStream dataWriter;
-    private final DataOutputStream commandWriter;
+    private final DataChannelWriter dataWriter;
+    private final CommandChannelWriter commandWriter;
+    private final boolean multiplexed; // data frames are written to the command connection
+    private final boolean crc32c; // data is hashed with CRC32C checksums
+    private final boolean ranges; // images are sent in checksummed chunks, and damaged ranges can be requested again
+    private final boolean deflate; // large Insight batches are sent compressed
 
-    public ServerQueryModule(StratoClientHandler server, DataInputStream commandReader, DataOutputStream dataWriter, DataOutputStream commandWriter) {
+    public ServerQueryModule(StratoClientHandler server, DataChannelWriter dataWriter, CommandChannelWriter commandWriter) {
         this.server = server;
-        this.commandReader = commandReader;
         this.dataWriter = dataWriter;
         this.commandWriter = commandWriter;
+        multiplexed = server.hasOption(ProtocolOptions.MUX);
+        crc32c = server.hasOption(ProtocolOptions.CRC32C);
+        ranges = server.hasOption(ProtocolOptions.RANGES);
+        deflate = server.hasOption(ProtocolOptions.DEFLATE);
     }
 
     /**
      * processes the received query-phase message based on the type and content
      * takes action based on the message type.
      *
+     * @param receivedToken the token attached to the message
+     * @param type          the message type
+     * @param payload       the message payload
      * @return whether the received message should terminate the connection
      * @throws IOException from stream and socket operations
      */
-    boolean processQueryMessage() throws IOException {
-        byte[] receivedToken = readToken();
-        byte type = commandReader.readByte();
-        String message = new String(readMessage());
-        if (!server.isRegisteredToken(new String(receivedToken))) {
+    boolean processQueryMessage(byte[] receivedToken, byte type, byte[] payload) throws IOException {
+        if (!server.isRegisteredToken(receivedToken)) {
             sendMessage((byte) 4, "Access Denied: invalid token");
             return false;
         }
 
+        String message = new String(payload);
         switch (type) {
             case 1:
-                return handleApodRequest(message);
             case 2:
-                return handleInsightRequest(message);
+            case 7:
+            case 8:
+                if (server.hasOption(ProtocolOptions.PIPELINE))
+                    return submitRequest(type, message);
+                if (dataWriter.getCredits() != null)
+                    return submitSingleRequest(type, message);
+                return handleRequest(type, null, message);
             case 5:
                 System.out.println("Acknowledged: " + message);
-                // stop processing state
-                server.setProcessing(false);
+                // stop processing state, pipelined queries leave it once they are all answered
+                if (!server.hasOption(ProtocolOptions.PIPELINE))
+                    server.setProcessing(false);
                 return true;
             case 6:
                 return false;
+            case 9: // Query_Credit
+                return grantCredits(message);
             default:
                 sendMessage((byte) 4, "Unknown Query Operation");
                 return false;
@@ -60,108 +95,705 @@ public class ServerQueryModule {
 
     /**
      * sends a command message to the client
+     * messages are written whole, so pipelined queries answered on other threads do not interleave.
      *
      * @param type    type of the message
      * @param payload content of the message
      * @throws IOException from stream and socket operations
      */
     private void sendMessage(byte type, String payload) throws IOException {
-        commandWriter.write(StratoUtils.makeQueryMessage(server.getToken(), type, payload));
+        commandWriter.writeQueryMessage(server.getToken(), type, payload);
+    }
+
+    /**
+     * sends the hash message of an answer, to be followed by its data frame and endFrame()
+     * the hash message is flushed with the messages before it, since the client reads the data frame only after it.
+     * on a multiplexed connection the command writer sends it and starts holding back the messages of other threads
+     * in one step, so none are written between the hash message and the frame, or in the middle of the frame.
+     *
+     * @param id   the request id of the query, null if it is not pipelined
+     * @param hash the hash of the data, empty if the frame carries its own hashes
+     * @throws IOException from stream and socket operations
+     */
+    private void beginFrame(String id, String hash) throws IOException {
+        if (multiplexed) {
+            commandWriter.beginFrame(server.getToken(), (byte) 0, id == null ? hash : id + "|" + hash);
+        } else {
+            sendReply(id, (byte) 0, hash);
+            commandWriter.flush();
+        }
+    }
+
+    /**
+     * ends the data frame of an answer, writing the messages held back while it was sent
+     *
+     * @throws IOException from stream and socket operations
+     */
+    private void endFrame() throws IOException {
+        if (multiplexed)
+            commandWriter.endFrame();
+    }
+
+    /**
+     * sends a command message about a query, prefixed with the id of the query if it was pipelined
+     *
+     * @param id      the request id of the query, null if it is not pipelined
+     * @param type    type of the message
+     * @param payload content of the message
+     * @throws IOException from stream and socket operations
+     */
+    private void sendReply(String id, byte type, String payload) throws IOException {
+        sendMessage(type, id == null ? payload : id + "|" + payload);
+    }
+
+    /**
+     * hands a pipelined query ("id|param") to the query pool, so that the command channel is free
+     * to receive further queries while it is fetched
+     *
+     * @param type    the query type (APOD, Insight, batch or ranges)
+     * @param message the query payload
+     * @return whether the connection should be kept open
+     * @throws IOException from stream and socket operations
+     */
+    private boolean submitRequest(byte type, String message) throws IOException {
+        int separator = message.indexOf('|');
+        if (separator <= 0) {
+            sendMessage((byte) 4, "Invalid request: missing request id");
+            return false;
+        }
+        String id = message.substring(0, separator);
+        String param = message.substring(separator + 1);
+        if (!server.beginRequest()) {
+            sendReply(id, (byte) 4, "Too many outstanding requests.");
+            return true;
+        }
+        try {
+            server.executeQuery(() -> runRequest(type, id, param));
+        } catch (RejectedExecutionException e) {
+            server.endRequest();
+            sendReply(id, (byte) 4, "Server is busy, try again later.");
+        }
+        return true;
     }
 
     /**
-     * reads the token of the message from the command socket input stream
+     * hands a query that is not pipelined to the query pool when its data frame is flow controlled,
+     * so that the command channel is free to receive the credits the frame waits for
      *
-     * @return the payload as an array of bytes
+     * @param type  the query type (APOD, Insight, batch or ranges)
+     * @param param the parameter given by the user
+     * @return whether the connection should be kept open
      * @throws IOException from stream and socket operations
      */
-    private byte[] readToken() throws IOException {
-        byte[] token = new byte[StratoUtils.TOKEN_LENGTH];
-        commandReader.readFully(token, 0, token.length);
-        return token;
+    private boolean submitSingleRequest(byte type, String param) throws IOException {
+        server.setProcessing(true);
+        try {
+            server.executeQuery(() -> runRequest(type, null, param));
+        } catch (RejectedExecutionException e) {
+            sendMessage((byte) 4, "Server is busy, try again later.");
+            return false;
+        }
+        return true;
     }
 
     /**
-     * reads the payload of the message from the command socket input stream
+     * adds the credits of a Query_Credit message to the client's window
      *
-     * @return the payload as an array of bytes
+     * @param message the number of bytes the client is ready to receive
+     * @return whether the message was valid
      * @throws IOException from stream and socket operations
      */
-    private byte[] readMessage() throws IOException {
-        int length = commandReader.readInt();
-        byte[] message = new byte[length];
-        commandReader.readFully(message, 0, message.length);
-        return message;
+    private boolean grantCredits(String message) throws IOException {
+        CreditWindow credits = dataWriter.getCredits();
+        try {
+            if (credits == null)
+                throw new NumberFormatException();
+            credits.grant(Long.parseLong(message.trim()));
+            return true;
+        } catch (NumberFormatException e) {
+            sendMessage((byte) 4, "Invalid credit message");
+            return false;
+        }
+    }
+
+    /**
+     * answers a query on the query pool. a failed query is only reported to the client (which ends the session
+     * if the query was not pipelined), but the connection is closed if the answer could not be written.
+     * the query leaves the outstanding count whatever happens, also when the handler fails unexpectedly.
+     */
+    private void runRequest(byte type, String id, String param) {
+        boolean answered = false;
+        try {
+            try {
+                answered = handleRequest(type, id, param);
+            } catch (RuntimeException e) {
+                System.err.println("Request " + id + " of client " + server.getClientPort() + " failed: " + e);
+                e.printStackTrace();
+                sendReply(id, (byte) 4, "Request failed: internal server error.");
+            } finally {
+                if (id != null)
+                    server.endRequest();
+                else if (!answered)
+                    server.setProcessing(false);
+            }
+            commandWriter.flush();
+        } catch (IOException e) {
+            System.err.println("Request " + id + " of client " + server.getClientPort() + " failed: " + e.getMessage());
+            server.disconnectClient();
+            server.closeConnection();
+        }
+    }
+
+    /**
+     * @param type  the query type (APOD, Insight, batch or ranges)
+     * @param id    the request id of the query, null if it is not pipelined
+     * @param param the parameter given by the user
+     * @return whether the request was successful
+     * @throws IOException from stream and socket operations
+     */
+    private boolean handleRequest(byte type, String id, String param) throws IOException {
+        switch (type) {
+            case 1:
+                return handleApodRequest(id, param);
+            case 2:
+                return handleInsightRequest(id, param);
+            case 7:
+                return handleBatchRequest(id, param);
+            default:
+                return handleRangeRequest(id, param);
+        }
     }
 
     /**
      * handles a client's query to the APOD API
+     * the hash message and the data frame of the answer are sent together while holding the data writer,
+     * so the data frames of pipelined queries arrive in the order of their hash messages.
      *
+     * @param id    the request id of the query, null if it is not pipelined
      * @param param the parameter given by the user (desired picture date)
      * @return whether the request was successful
      * @throws IOException from stream and socket operations
      */
-    private boolean handleApodRequest(String param) throws IOException {
-        sendMessage((byte) 3, "Processing request..");
-        server.setProcessing(true);
+    private boolean handleApodRequest(String id, String param) throws IOException {
+        sendReply(id, (byte) 3, "Processing request..");
+        if (id == null)
+            server.setProcessing(true);
+        Path storedImage = server.getStoredImage(param);
+        if (storedImage != null && sendStoredImage(id, storedImage))
+            return true;
         URL url = new URL(StratoUtils.APOD_URL + param);
         String response = server.apiRequest(url);
         if (response == null) {
-            sendMessage((byte) 4, "Invalid request: no results found.");
+            sendReply(id, (byte) 4, "Invalid request: no results found.");
             return false;
         }
         String imageUrl = StratoUtils.extractURL(response);
         if (!imageUrl.endsWith(".jpg")) { // no image url in the returned json object
-            sendMessage((byte) 4, "No image found with the given date.");
+            sendReply(id, (byte) 4, "No image found with the given date.");
             return false;
         }
         // image url found
-        byte[] image = StratoUtils.downloadImage(imageUrl);
-        sendMessage((byte) 0, StratoUtils.generateHash(1, image));
-        sendData((byte) 1, image.length, image);
+        if (server.hasOption(ProtocolOptions.STREAM)) {
+            // opened before waiting for the data writer, so the download is shared with the queries sent before
+            try (InputStream image = server.openImage(param, imageUrl)) {
+                synchronized (dataWriter) {
+                    beginFrame(id, ""); // the hash follows the streamed data
+                    try {
+                        streamImage(image);
+                    } finally {
+                        endFrame();
+                    }
+                }
+            }
+            return true;
+        }
+        byte[] image = server.downloadImage(param, imageUrl);
+        String hash = StratoUtils.generateHash(1, image, crc32c);
+        synchronized (dataWriter) {
+            beginFrame(id, ranges ? "" : hash); // with ranges, the hash follows the chunks
+            try {
+                if (ranges)
+                    sendCheckedImage(ByteBuffer.wrap(image), hash);
+                else
+                    sendData((byte) 1, image);
+            } finally {
+                endFrame();
+            }
+        }
         return true;
     }
 
+    /**
+     * sends an image in chunks of STREAM_CHUNK_SIZE bytes that each carry their checksum,
+     * format: type 5, then (int length, bytes, int checksum) for every chunk, an int 0, and the hash as (int length, UTF-8 bytes)
+     *
+     * @param image the image, from its position to its limit
+     * @param hash  the hash of the whole image
+     * @throws IOException from stream and socket operations
+     */
+    private void sendCheckedImage(ByteBuffer image, String hash) throws IOException {
+        dataWriter.beginStream((byte) 5);
+        for (int offset = image.position(); offset < image.limit(); offset += StratoServer.STREAM_CHUNK_SIZE) {
+            ByteBuffer chunk = image.duplicate();
+            chunk.position(offset);
+            chunk.limit(Math.min(offset + StratoServer.STREAM_CHUNK_SIZE, image.limit()));
+            dataWriter.sendChunk(chunk, StratoUtils.chunkChecksum(chunk));
+        }
+        dataWriter.endStream(hash.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * handles a client's Query_Ranges message, which asks again for the damaged chunks of an image sent in checksummed chunks.
+     * format of the parameter: the APOD date, ':', then the ranges as comma-separated offset+length pairs.
+     * the ranges are read from the image store, which holds every image sent (shared by all sessions and capped in bytes),
+     * and only from a new download if the image was evicted meanwhile. the ranges must not overlap, so a request never asks for more than
+     * the image. they are sent in a single data frame: type 6, int range count,
+     * then (int offset, int length, bytes, int checksum) for every range.
+     *
+     * @param id    the request id of the query, null if it is not pipelined
+     * @param param the date and the ranges
+     * @return whether the request was successful
+     * @throws IOException from stream and socket operations
+     */
+    private boolean handleRangeRequest(String id, String param) throws IOException {
+        int separator = param.indexOf(':');
+        String date = separator > 0 ? param.substring(0, separator) : "";
+        int[][] requested = separator > 0 ? parseRanges(param.substring(separator + 1)) : null;
+        if (!ranges || requested == null) {
+            sendReply(id, (byte) 4, "Invalid range request");
+            return false;
+        }
+        if (id == null)
+            server.setProcessing(true);
+        ByteBuffer image = openImageForRanges(date);
+        if (image == null) {
+            sendReply(id, (byte) 4, "Image is no longer available.");
+            return false;
+        }
+        if (!isWithin(requested, image.limit())) {
+            sendReply(id, (byte) 4, "Invalid range request");
+            return false;
+        }
+        synchronized (dataWriter) {
+            beginFrame(id, ""); // every range carries its own checksum
+            try {
+                dataWriter.beginBatch((byte) 6, requested.length);
+                for (int[] range : requested) {
+                    ByteBuffer chunk = image.duplicate();
+                    chunk.position(range[0]);
+                    chunk.limit(range[0] + range[1]);
+                    dataWriter.sendRange(range[0], chunk, StratoUtils.chunkChecksum(chunk));
+                }
+            } finally {
+                endFrame();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param list comma-separated offset+length pairs
+     * @return the ranges as {offset, length} pairs, or null if the list is malformed
+     */
+    private static int[][] parseRanges(String list) {
+        String[] pairs = list.split(",");
+        if (pairs.length > MAX_RANGES)
+            return null;
+        int[][] parsed = new int[pairs.length][];
+        try {
+            for (int i = 0; i < pairs.length; i++) {
+                int plus = pairs[i].indexOf('+');
+                int offset = Integer.parseInt(pairs[i].substring(0, plus).trim());
+                int length = Integer.parseInt(pairs[i].substring(plus + 1).trim());
+                if (offset < 0 || length <= 0 || length > Integer.MAX_VALUE - offset)
+                    return null;
+                parsed[i] = new int[]{offset, length};
+            }
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            return null;
+        }
+        return parsed;
+    }
+
+    /**
+     * checks that ranges lie within an image and do not overlap, so they add up to at most the image
+     *
+     * @param requested the ranges as {offset, length} pairs
+     * @param size      the size of the image
+     * @return whether the ranges are valid
+     */
+    private static boolean isWithin(int[][] requested, int size) {
+        int[][] sorted = requested.clone();
+        Arrays.sort(sorted, Comparator.comparingInt(range -> range[0]));
+        long end = 0; // end of the previous range
+        for (int[] range : sorted) {
+            if (range[0] < end || (long) range[0] + range[1] > size)
+                return false;
+            end = (long) range[0] + range[1];
+        }
+        return true;
+    }
+
+    /**
+     * finds the image of an APOD date for answering a range request: the image mapped from the image store,
+     * or as a last resort the image downloaded again
+     *
+     * @param date the APOD date
+     * @return the image, or null if it cannot be found
+     * @throws IOException from file, stream and socket operations
+     */
+    private ByteBuffer openImageForRanges(String date) throws IOException {
+        Path storedImage = server.getStoredImage(date);
+        ByteBuffer stored = storedImage == null ? null : mapImage(storedImage);
+        if (stored != null)
+            return stored;
+        String response = server.apiRequest(new URL(StratoUtils.APOD_URL + date));
+        if (response == null)
+            return null;
+        String imageUrl = StratoUtils.extractURL(response);
+        if (!imageUrl.endsWith(".jpg"))
+            return null;
+        return ByteBuffer.wrap(server.downloadImage(date, imageUrl));
+    }
+
     /**
      * handles a client's query to the Insight API
      *
+     * @param id    the request id of the query, null if it is not pipelined
      * @param param the parameter given by the user (desired sol number)
      * @return whether the request was successful
      * @throws IOException from stream and socket operations
      */
-    private boolean handleInsightRequest(String param) throws IOException {
-        sendMessage((byte) 3, "Processing request..");
-        server.setProcessing(true);
-        URL url = new URL(StratoUtils.INSIGHT_URL);
-        String response = server.apiRequest(url);
-        if (response == null) {
-            sendMessage((byte) 4, "Invalid request: no results found.");
+    private boolean handleInsightRequest(String id, String param) throws IOException {
+        sendReply(id, (byte) 3, "Processing request..");
+        if (id == null)
+            server.setProcessing(true);
+        InsightService.Sol[] sols = server.getInsightSols();
+        if (sols == null) {
+            sendReply(id, (byte) 4, "Invalid request: no results found.");
             return false;
         }
-        String[] solPREList = StratoUtils.extractPREObjects(response);
-        try {
-            byte[] data = solPREList[Integer.parseInt(param) - 1].getBytes(StandardCharsets.UTF_8);
-            sendMessage((byte) 0, StratoUtils.generateHash(2, data));
-            sendData((byte) 2, data.length, data);
-        } catch (ArrayIndexOutOfBoundsException e) {
-            sendMessage((byte) 4, "Invalid Argument");
+        InsightService.Sol sol = InsightService.find(sols, param);
+        if (sol == null) {
+            sendReply(id, (byte) 4, "Invalid Argument");
+            return false;
+        }
+        synchronized (dataWriter) {
+            beginFrame(id, crc32c ? sol.checksum : sol.hash);
+            try {
+                sendData((byte) 2, sol.payload);
+            } finally {
+                endFrame();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * handles a client's batch query, "1:" followed by APOD dates or "2:" followed by Insight sols.
+     * items are separated by commas, and an item may be an inclusive range ("2021-01-01..2021-01-07", "1..7").
+     * the items are fetched in parallel, at most BATCH_CONCURRENCY at once, and each is sent as soon as it is fetched,
+     * so at most BATCH_CONCURRENCY items are held at once. every item is announced by a hash message with an empty hash
+     * and sent in its own data frame: type 4, int item count (1), then the item as
+     * (byte type, int key length, key, int length, data, int hash length, hash). an item of type 0 failed,
+     * and its data is the reason. with the "deflate" option, the batch of all Insight sols is sent in a single frame
+     * of type 7, the items being compressed together once per refresh of the feed (see sendCompressedBatch()).
+     * the batch ends with a Query_Batch message (type 7) carrying the number of items,
+     * and the client acknowledges the whole batch once.
+     *
+     * @param id    the request id of the query, null if it is not pipelined
+     * @param param the parameter given by the user
+     * @return whether the request was valid
+     * @throws IOException from stream and socket operations
+     */
+    private boolean handleBatchRequest(String id, String param) throws IOException {
+        int separator = param.indexOf(':');
+        String api = separator > 0 ? param.substring(0, separator).trim() : "";
+        List<String> keys = separator > 0 ? parseBatch(api, param.substring(separator + 1)) : null;
+        if (keys == null || keys.isEmpty()) {
+            sendReply(id, (byte) 4, "Invalid batch: expected 1:<dates> or 2:<sols>");
+            return false;
+        }
+        if (keys.size() > StratoServer.MAX_BATCH_SIZE) {
+            sendReply(id, (byte) 4, "Invalid batch: at most " + StratoServer.MAX_BATCH_SIZE + " items");
+            return false;
+        }
+        sendReply(id, (byte) 3, "Processing batch of " + keys.size() + " items..");
+        if (id == null)
+            server.setProcessing(true);
+
+        boolean apod = api.equals("1");
+        if (!apod && deflate && sendCompressedBatch(id, keys)) {
+            sendReply(id, (byte) 7, String.valueOf(keys.size()));
+            return true;
+        }
+        CompletionService<BatchItem> fetched = new ExecutorCompletionService<>(server.getBatchExecutor());
+        int submitted = 0;
+        while (submitted < Math.min(StratoServer.BATCH_CONCURRENCY, keys.size()))
+            fetched.submit(fetchBatchItem(apod, keys.get(submitted++)));
+        for (int i = 0; i < keys.size(); i++) {
+            BatchItem item = takeBatchItem(fetched);
+            if (submitted < keys.size())
+                fetched.submit(fetchBatchItem(apod, keys.get(submitted++)));
+            sendBatchItem(id, item);
+        }
+        sendReply(id, (byte) 7, String.valueOf(keys.size()));
+        return true;
+    }
+
+    /**
+     * sends an item of a batch in its own data frame, holding the data writer only while it is written,
+     * so other answers are not held up by the items not fetched yet
+     *
+     * @param id   the request id of the query, null if it is not pipelined
+     * @param item the fetched item
+     * @throws IOException from stream and socket operations
+     */
+    private void sendBatchItem(String id, BatchItem item) throws IOException {
+        synchronized (dataWriter) {
+            beginFrame(id, ""); // the item carries its own hash
+            try {
+                dataWriter.beginBatch((byte) 4, 1);
+                dataWriter.sendBatchItem(item.key.getBytes(StandardCharsets.UTF_8), item.type, item.data, item.hash);
+            } finally {
+                endFrame();
+            }
+        }
+    }
+
+    /**
+     * sends an Insight batch asking for all sols in order ("1" to the number of sols) in a single data frame,
+     * from the compressed form cached with the feed
+     *
+     * @param id   the request id of the query, null if it is not pipelined
+     * @param keys the keys of the items
+     * @return whether the batch was sent, false if it is not the batch of all sols or it is not compressed
+     * @throws IOException from stream and socket operations
+     */
+    private boolean sendCompressedBatch(String id, List<String> keys) throws IOException {
+        InsightService.CompressedBatch batch = server.getCompressedInsightBatch();
+        if (batch == null || keys.size() != batch.count)
             return false;
+        for (int i = 0; i < keys.size(); i++)
+            if (!keys.get(i).equals(String.valueOf(i + 1)))
+                return false;
+        byte[] compressed = crc32c ? batch.checksummed : batch.hashed;
+        synchronized (dataWriter) {
+            beginFrame(id, ""); // every item carries its own hash
+            try {
+                dataWriter.sendCompressedBatch((byte) 7, batch.count, compressed);
+            } finally {
+                endFrame();
+            }
         }
         return true;
     }
 
+    /**
+     * expands the items of a batch query
+     *
+     * @param api  "1" for APOD dates, "2" for Insight sols
+     * @param spec comma-separated items and ranges
+     * @return the keys of the items, stopping after MAX_BATCH_SIZE + 1 keys, or null if the batch is malformed
+     */
+    private static List<String> parseBatch(String api, String spec) {
+        if (!api.equals("1") && !api.equals("2"))
+            return null;
+        List<String> keys = new ArrayList<>();
+        try {
+            for (String item : spec.split(",")) {
+                item = item.trim();
+                int range = item.indexOf("..");
+                if (range < 0) {
+                    if (!item.isEmpty())
+                        keys.add(item);
+                    continue;
+                }
+                String from = item.substring(0, range).trim();
+                String to = item.substring(range + 2).trim();
+                if (api.equals("1")) {
+                    LocalDate last = LocalDate.parse(to);
+                    for (LocalDate date = LocalDate.parse(from); !date.isAfter(last) && keys.size() <= StratoServer.MAX_BATCH_SIZE; date = date.plusDays(1))
+                        keys.add(date.toString());
+                } else {
+                    int last = Integer.parseInt(to);
+                    for (int sol = Integer.parseInt(from); sol <= last && keys.size() <= StratoServer.MAX_BATCH_SIZE; sol++)
+                        keys.add(String.valueOf(sol));
+                }
+            }
+        } catch (DateTimeParseException | NumberFormatException e) {
+            return null;
+        }
+        return keys;
+    }
+
+    /**
+     * @return a task fetching an item of a batch, a failed fetch gives a failed item instead of an exception
+     */
+    private Callable<BatchItem> fetchBatchItem(boolean apod, String key) {
+        return () -> {
+            try {
+                return apod ? fetchApodItem(key) : fetchInsightItem(key);
+            } catch (IOException e) {
+                return BatchItem.failed(key, "Request failed: " + e.getMessage());
+            }
+        };
+    }
+
+    private BatchItem fetchApodItem(String date) throws IOException {
+        Path storedImage = server.getStoredImage(date);
+        ByteBuffer stored = storedImage == null ? null : mapImage(storedImage);
+        if (stored != null) // mapped, so the image is sent from the page cache instead of the heap
+            return batchItem(date, (byte) 1, stored);
+        String response = server.apiRequest(new URL(StratoUtils.APOD_URL + date));
+        if (response == null)
+            return BatchItem.failed(date, "Invalid request: no results found.");
+        String imageUrl = StratoUtils.extractURL(response);
+        if (!imageUrl.endsWith(".jpg"))
+            return BatchItem.failed(date, "No image found with the given date.");
+        return batchItem(date, (byte) 1, ByteBuffer.wrap(server.downloadImage(date, imageUrl)));
+    }
+
+    private BatchItem fetchInsightItem(String key) throws IOException {
+        InsightService.Sol[] sols = server.getInsightSols();
+        if (sols == null)
+            return BatchItem.failed(key, "Invalid request: no results found.");
+        InsightService.Sol sol = InsightService.find(sols, key);
+        if (sol == null)
+            return BatchItem.failed(key, "Invalid Argument");
+        return batchItem(key, (byte) 2, ByteBuffer.wrap(sol.payload));
+    }
+
+    /**
+     * @return a fetched item of a batch, hashed on the fetching thread
+     */
+    private BatchItem batchItem(String key, byte type, ByteBuffer data) {
+        return new BatchItem(key, type, data, StratoUtils.generateHash(type, data, crc32c).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * maps an image of the image store
+     *
+     * @param file the stored image file, from ImageStore.lookup()
+     * @return the mapped image, or null if it was evicted since it was looked up
+     * @throws IOException from file operations
+     */
+    private static ByteBuffer mapImage(Path file) throws IOException {
+        try (FileChannel image = FileChannel.open(file, StandardOpenOption.READ)) {
+            return image.map(FileChannel.MapMode.READ_ONLY, 0, image.size()); // stays valid once the file is closed
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * waits for the next fetched item of a batch
+     *
+     * @throws IOException if the fetch failed unexpectedly or the thread was interrupted
+     */
+    private static BatchItem takeBatchItem(CompletionService<BatchItem> fetched) throws IOException {
+        try {
+            return fetched.take().get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * an item of a batch query: the fetched data and its hash, or the reason of the failure for type 0
+     */
+    private static final class BatchItem {
+        final String key;
+        final byte type;
+        final ByteBuffer data; // a memory-mapped file for a stored image
+        final byte[] hash; // empty for a failed item
+
+        BatchItem(String key, byte type, ByteBuffer data, byte[] hash) {
+            this.key = key;
+            this.type = type;
+            this.data = data;
+            this.hash = hash;
+        }
+
+        static BatchItem failed(String key, String reason) {
+            return new BatchItem(key, (byte) 0, ByteBuffer.wrap(reason.getBytes(StandardCharsets.UTF_8)), new byte[0]);
+        }
+    }
+
     /**
      * sends the data retrieved from an API to the client
      *
-     * @param type   data type (image or JSON object)
-     * @param length size of the data (in bytes)
-     * @param data   the data (image or JSON Object) as an array of bytes
+     * @param type data type (image or JSON object)
+     * @param data the data (image or JSON Object) as an array of bytes
+     * @throws IOException from stream and socket operations
+     */
+    private void sendData(byte type, byte[] data) throws IOException {
+        dataWriter.send(type, data);
+    }
+
+    /**
+     * relays an image to the client while it is downloaded, in chunks of STREAM_CHUNK_SIZE bytes.
+     * the download is shared with the other clients streaming the same image (see ImageRelay), which also stores it.
+     * format: type 3, then (int length, bytes) for every chunk, an int 0, and the hash as (int length, UTF-8 bytes).
+     * with the "ranges" option the frame has type 5 and every chunk is followed by its checksum, as in sendCheckedImage().
+     *
+     * @param image the stream of the image, from server.openImage()
      * @throws IOException from stream and socket operations
      */
-    private void sendData(byte type, int length, byte[] data) throws IOException {
-        dataWriter.write(type);
-        dataWriter.write(StratoUtils.intToByte(length));
-        dataWriter.write(data);
+    private void streamImage(InputStream image) throws IOException {
+        DataHash hash = new DataHash(1, crc32c);
+        byte[] chunk = new byte[StratoServer.STREAM_CHUNK_SIZE];
+        dataWriter.beginStream(ranges ? (byte) 5 : (byte) 3);
+        int length;
+        while ((length = image.read(chunk)) != -1) {
+            if (length == 0)
+                continue;
+            if (ranges) {
+                ByteBuffer checked = ByteBuffer.wrap(chunk, 0, length);
+                dataWriter.sendChunk(checked, StratoUtils.chunkChecksum(checked));
+            } else {
+                dataWriter.sendChunk(chunk, 0, length);
+            }
+            hash.update(chunk, 0, length);
+        }
+        dataWriter.endStream(hash.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * sends an image from the image store, hashing it through a memory map and
+     * transferring it from the file to the data socket without copying it into the heap
+     *
+     * @param id   the request id of the query, null if it is not pipelined
+     * @param file the stored image file
+     * @return whether the image was sent, false if it was evicted since it was looked up
+     * @throws IOException from file, stream and socket operations
+     */
+    private boolean sendStoredImage(String id, Path file) throws IOException {
+        FileChannel opened;
+        try {
+            opened = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) { // the open file can be sent even if it is evicted now
+            return false;
+        }
+        try (FileChannel image = opened) {
+            ByteBuffer mapped = image.map(FileChannel.MapMode.READ_ONLY, 0, image.size());
+            String hash = StratoUtils.generateHash(1, mapped, crc32c);
+            synchronized (dataWriter) {
+                beginFrame(id, ranges ? "" : hash); // with ranges, the hash follows the chunks
+                try {
+                    if (ranges)
+                        sendCheckedImage(mapped, hash);
+                    else
+                        dataWriter.sendFile((byte) 1, image);
+                } finally {
+                    endFrame();
+                }
+            }
+        }
+        return true;
     }
 
     /**
@@ -0,0 +1,51 @@
+package server;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * this class keeps the sessions of logged-in clients, mapped by their tokens
+ * it is shared by all client handlers, so it is backed by a concurrent map.
+ */
+final class SessionRegistry {
+
+    private final ConcurrentHashMap<SessionToken, ClientSession> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * registers a session under its token, unless the token is already in use
+     *
+     * @param session the session to be registered
+     * @return whether the session was registered
+     */
+    boolean registerIfAbsent(ClientSession session) {
+        return sessions.putIfAbsent(session.getToken(), session) == null;
+    }
+
+    /**
+     * removes the session of the given token and marks it inactive
+     *
+     * @param token the token of the session
+     */
+    void unregister(SessionToken token) {
+        ClientSession session = sessions.remove(token);
+        if (session != null)
+            session.deactivate();
+    }
+
+    /**
+     * removes all sessions that have expired
+     *
+     * @param now the current time in milliseconds
+     */
+    void evictExpired(long now) {
+        Iterator<ClientSession> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            ClientSession session = iterator.next();
+            if (session.isExpired(now)) {
+                iterator.remove();
+                session.deactivate();
+                System.out.println("Session of " + session.getUsername() + " expired.");
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package server;
+
+import utils.InvalidTokenException;
+import utils.StratoUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * this class is the fixed-width binary form of a session token
+ * tokens are compared byte by byte against the receive buffer, so validating a query allocates nothing.
+ */
+final class SessionToken {
+
+    private final byte[] bytes;
+    private final int hash;
+    private final String text;
+
+    /**
+     * @param bytes the token bytes, exactly TOKEN_LENGTH of them
+     * @throws InvalidTokenException if the number of bytes is not TOKEN_LENGTH
+     */
+    SessionToken(byte[] bytes) throws InvalidTokenException {
+        if (bytes.length != StratoUtils.TOKEN_LENGTH)
+            throw new InvalidTokenException();
+        this.bytes = bytes.clone();
+        hash = Arrays.hashCode(this.bytes);
+        text = new String(this.bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * compares the token with TOKEN_LENGTH bytes of a buffer.
+     * every byte is compared so that the time taken does not reveal how much of the token matched.
+     *
+     * @param buffer the buffer holding a received token
+     * @param offset the position of the token in the buffer
+     * @return whether the bytes are equal to this token
+     */
+    boolean matches(byte[] buffer, int offset) {
+        int difference = 0;
+        for (int i = 0; i < bytes.length; i++)
+            difference |= bytes[i] ^ buffer[offset + i];
+        return difference == 0;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof SessionToken && Arrays.equals(bytes, ((SessionToken) other).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * @return the token as sent to the client
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+}
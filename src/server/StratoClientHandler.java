@@ -1,109 +1,207 @@
 package server;
 
+import utils.ProtocolOptions;
 import utils.StratoUtils;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * this class handles an individual client connection to the server
- * since this class extends the Thread class, clients are connected concurrently.
+ * since this class is a Runnable task executed by the server's connection executor, clients are connected concurrently.
+ * the NIO engine does not call run(), it reads messages itself and passes them to handleMessage().
  */
-public class StratoClientHandler extends Thread {
+public class StratoClientHandler implements Runnable {
     private final Socket commandSocket;
     private Socket dataSocket;
     private final StratoServer server;
 
     private int currentPhase = 0;
+    private boolean started; // run() was called, guarded by this
+    private volatile boolean processing;
+    private int outstandingRequests; // pipelined queries that are not answered yet
+    private final AtomicBoolean disconnected = new AtomicBoolean();
 
     DataInputStream commandReader;
-    DataOutputStream commandWriter;
-    DataOutputStream dataWriter;
+    CommandChannelWriter commandWriter;
+    private OutputStream commandOutput;
 
     private ServerAuthModule authModule;
     private ServerQueryModule queryModule;
 
+    private ClientSession session;
+    private Set<String> options = Collections.emptySet();
+    private final byte[] tokenBuffer = new byte[StratoUtils.TOKEN_LENGTH]; // reused for every received token
+
     public StratoClientHandler(Socket commandSocket, StratoServer server) {
         this.commandSocket = commandSocket;
         this.server = server;
     }
 
+    @Override
     public void run() {
+        synchronized (this) { // a queued notice is either written before the handler starts, or not at all
+            started = true;
+        }
         try {
             //  initialize input/output streams
-            commandWriter = new DataOutputStream(commandSocket.getOutputStream());
             commandReader = new DataInputStream(commandSocket.getInputStream());
             // set Socket timeout
             commandSocket.setSoTimeout(StratoUtils.SOCKET_TIMEOUT_DURATION);
-            // initialize authentication module
-            authModule = new ServerAuthModule(this, commandReader, commandWriter);
-
-            // send welcoming messages
-            sendMessage((byte) 0, (byte) 5, "Welcome to StratoNet server");
-            sendMessage((byte) 0, (byte) 1, "Username:");
+            open(commandSocket.getOutputStream());
 
             // start interaction loop
             while (true) {
-                if (!receiveMessage())
+                boolean keepOpen = receiveMessage();
+                commandWriter.flush(); // the turn is over, send its messages
+                if (!keepOpen)
                     break;
             }
-            disconnectClient();
-            closeConnection();
         } catch (SocketTimeoutException e) {
             sendTimeOutMessage();
-            disconnectClient();
         } catch (SocketException e) {
             System.err.println("Lost connection with client");
-            disconnectClient();
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            // the worker goes back to the pool, so the sockets are closed whatever ended the session
             disconnectClient();
+            closeConnection();
         }
     }
 
     /**
-     * closes sockets and streams
+     * tells a client accepted by the blocking engine that it waits in the admission queue for a worker,
+     * so it does not sit without feedback until the handler starts. nothing is sent once the handler has started.
      */
-    private void closeConnection() {
+    synchronized void notifyQueued() {
+        if (started)
+            return;
         try {
-            commandWriter.close();
-            commandReader.close();
-            commandSocket.close();
-            if (dataWriter != null) {
-                dataWriter.close();
-                dataSocket.close();
-            }
+            commandSocket.getOutputStream().write(StratoUtils.makeAuthMessage((byte) 5, "Server is busy, you are queued.."));
+        } catch (IOException e) {
+            System.err.println("Could not notify queued client: " + e.getMessage());
+        }
+    }
+
+    /**
+     * initializes the command output stream and the authentication module, then sends the welcoming messages
+     *
+     * @param commandOutput the stream to which command messages are written
+     * @throws IOException from stream and socket operations
+     */
+    void open(OutputStream commandOutput) throws IOException {
+        this.commandOutput = commandOutput;
+        commandWriter = new CommandChannelWriter(commandOutput, StratoServer.COMMAND_BUFFER_SIZE);
+        // initialize authentication module
+        authModule = new ServerAuthModule(this, commandWriter);
+
+        // send welcoming messages
+        sendMessage((byte) 0, (byte) 5, "Welcome to StratoNet server");
+        sendMessage((byte) 0, (byte) 1, "Username:");
+        commandWriter.flush();
+    }
+
+    /**
+     * closes sockets and streams, the sockets being closed even if the last messages cannot be written
+     */
+    void closeConnection() {
+        try {
+            if (commandWriter != null)
+                commandWriter.close();
+        } catch (IOException e) {
+            System.err.println("Could not write the last messages: " + e.getMessage());
+        } finally {
+            close(commandSocket);
+            if (dataSocket != null)
+                close(dataSocket);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close(); // also closes its streams
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * receives a message and directs it to the appropriate module
+     * reads a message from the command socket and directs it to the appropriate module
      *
      * @return whether the received message should terminate connection
      * @throws IOException from stream and socket operations
      */
     private boolean receiveMessage() throws IOException {
         byte phase = commandReader.readByte();
+        if (phase != currentPhase) {
+            rejectMessage();
+            return false;
+        }
+        if (phase == 1) // query messages carry a token
+            commandReader.readFully(tokenBuffer, 0, tokenBuffer.length);
+        byte type = commandReader.readByte();
+        return handleMessage(phase, tokenBuffer, type, readMessage());
+    }
+
+    /**
+     * reads the payload of the message from the command socket input stream
+     *
+     * @return the payload as an array of bytes
+     * @throws IOException from stream and socket operations
+     */
+    private byte[] readMessage() throws IOException {
+        int length = commandReader.readInt();
+        byte[] message = new byte[length];
+        commandReader.readFully(message, 0, message.length);
+        return message;
+    }
+
+    /**
+     * directs a fully received message to the appropriate module
+     *
+     * @param phase   the phase of the message
+     * @param token   the token of the message (query phase only)
+     * @param type    the message type
+     * @param payload the message payload
+     * @return whether the received message should terminate connection
+     * @throws IOException from stream and socket operations
+     */
+    boolean handleMessage(byte phase, byte[] token, byte type, byte[] payload) throws IOException {
         if (phase != currentPhase) {
             rejectMessage();
             return false;
         }
         if (phase == 0) { // auth
-            return authModule.processAuthMessage();
+            return authModule.processAuthMessage(type, payload);
         }
         if (phase == 1) { // query
-            return queryModule.processQueryMessage();
+            return queryModule.processQueryMessage(token, type, payload);
         }
         return false;
     }
 
+    /**
+     * writes the command messages of the current turn to the client
+     *
+     * @throws IOException from stream and socket operations
+     */
+    void flushMessages() throws IOException {
+        commandWriter.flush();
+    }
+
     /**
      * sends a message to the client
      *
@@ -114,22 +212,23 @@ public class StratoClientHandler extends Thread {
      */
     private void sendMessage(byte phase, byte type, String payload) throws IOException {
         if (phase == 0) // auth
-            commandWriter.write(StratoUtils.makeAuthMessage(type, payload));
+            commandWriter.writeAuthMessage(type, payload);
         else  // query
-            commandWriter.write(StratoUtils.makeQueryMessage(authModule.getToken(), type, payload));
+            commandWriter.writeQueryMessage(authModule.getToken(), type, payload);
     }
 
     /**
      * indicates connection timeout and sends a timeout message to the client
      * through the appropriate module
      */
-    private void sendTimeOutMessage() {
+    void sendTimeOutMessage() {
         System.out.println("Client " + commandSocket.getPort() + " timed out.");
         try {
             if (currentPhase == 0)
                 authModule.sendTimeOutMessage();
             else
                 queryModule.sendTimeOutMessage();
+            commandWriter.flush();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -137,22 +236,76 @@ public class StratoClientHandler extends Thread {
 
     /**
      * sets the current phase to query phase. initializes data socket, data stream, and query module.
+     * multiplexed clients have no data socket, their data frames are written to the command connection.
      *
      * @throws IOException from stream and socket operations
      */
     void initializeQueryPhase() throws IOException {
         currentPhase = 1;
-        dataSocket = server.getDataSocket();
-        dataWriter = new DataOutputStream(dataSocket.getOutputStream());
-        queryModule = new ServerQueryModule(this, commandReader, dataWriter, commandWriter);
+        commandWriter.flush(); // the client connects its data socket once it receives the connection info
+        CreditWindow credits = hasOption(ProtocolOptions.CREDIT) ? new CreditWindow(StratoUtils.SOCKET_TIMEOUT_DURATION) : null;
+        if (hasOption(ProtocolOptions.MUX)) {
+            OutputStreamChannel channel = new OutputStreamChannel(commandOutput, StratoServer.STREAM_CHUNK_SIZE);
+            queryModule = new ServerQueryModule(this, new DataChannelWriter(channel, true, credits), commandWriter);
+            System.out.println("user multiplexed on command socket");
+            return;
+        }
+        dataSocket = server.getDataSocket(session.getToken());
+        queryModule = new ServerQueryModule(this, new DataChannelWriter(dataSocket.getChannel(), false, credits), commandWriter);
         System.out.println("user connected to data socket");
     }
 
 
     void setProcessing(boolean isProcessing) throws IOException {
+        processing = isProcessing;
         commandSocket.setSoTimeout(isProcessing ? 0 : StratoUtils.SOCKET_TIMEOUT_DURATION);
     }
 
+    /**
+     * counts a pipelined query as outstanding, keeping the client in processing state until all of them are answered
+     *
+     * @return whether the query was admitted, false if the client already has PIPELINE_DEPTH outstanding queries
+     * @throws IOException from socket operations
+     */
+    synchronized boolean beginRequest() throws IOException {
+        if (outstandingRequests >= StratoServer.PIPELINE_DEPTH)
+            return false;
+        if (outstandingRequests++ == 0)
+            setProcessing(true);
+        return true;
+    }
+
+    /**
+     * marks a pipelined query as answered, leaving processing state once no queries are outstanding
+     *
+     * @throws IOException from socket operations
+     */
+    synchronized void endRequest() throws IOException {
+        if (--outstandingRequests == 0)
+            setProcessing(false);
+    }
+
+    /**
+     * runs a pipelined query on the server's query pool
+     *
+     * @param query the query task
+     * @throws java.util.concurrent.RejectedExecutionException if the query pool is full
+     */
+    void executeQuery(Runnable query) {
+        server.getQueryExecutor().execute(query);
+    }
+
+    Executor getBatchExecutor() {
+        return server.getBatchExecutor();
+    }
+
+    /**
+     * @return whether the client is waiting on a request, in which case it must not be timed out
+     */
+    boolean isProcessing() {
+        return processing;
+    }
+
     private void rejectMessage() throws IOException {
         if (currentPhase == 0)
             sendMessage((byte) currentPhase, (byte) 2, "Authentication phase already passed.");
@@ -160,28 +313,94 @@ public class StratoClientHandler extends Thread {
             sendMessage((byte) currentPhase, (byte) 4, "Access Denied: unauthorized user");
     }
 
+    /**
+     * registers the client with the server and keeps its session for validating later queries
+     *
+     * @param inputUsername username of the client
+     * @return the token of the client
+     */
     public String registerClient(String inputUsername) {
-        return server.registerClient(inputUsername, commandSocket.getInetAddress().toString(), commandSocket.getPort());
+        session = server.registerClient(inputUsername, commandSocket.getInetAddress(), commandSocket.getPort(),
+                !hasOption(ProtocolOptions.MUX));
+        return session.getToken().toString();
     }
 
-    public boolean isRegisteredToken(String token) {
-        return server.isRegisteredToken(token, commandSocket.getInetAddress().toString(), commandSocket.getPort());
+    /**
+     * checks a received token against the session of this connection
+     *
+     * @param token the buffer holding the received token
+     * @return whether the token belongs to the registered session of this connection
+     */
+    public boolean isRegisteredToken(byte[] token) {
+        return session != null && session.isValidToken(token, 0);
     }
 
     public String getToken() {
         return authModule.getToken();
     }
 
+    String getPassword(String username) {
+        return server.getUserStore().getPassword(username);
+    }
+
+    boolean verifyPassword(String password, String stored) {
+        return server.getCredentialVerifier().verify(password, stored);
+    }
+
     public String apiRequest(URL url) throws IOException {
         return server.apiRequest(url);
     }
 
+    public byte[] downloadImage(String date, String url) throws IOException {
+        return server.downloadImage(date, url);
+    }
+
+    InsightService.Sol[] getInsightSols() throws IOException {
+        return server.getInsightSols();
+    }
+
+    InsightService.CompressedBatch getCompressedInsightBatch() throws IOException {
+        return server.getCompressedInsightBatch();
+    }
+
+    Path getStoredImage(String date) {
+        return server.getStoredImage(date);
+    }
+
+    InputStream openImage(String date, String url) throws IOException {
+        return server.openImage(date, url);
+    }
+
+    /**
+     * keeps the requested protocol options that the server supports
+     *
+     * @param requested comma-separated list of the options requested by the client
+     * @return comma-separated list of the accepted options
+     */
+    String negotiateOptions(String requested) {
+        Set<String> accepted = new LinkedHashSet<>(ProtocolOptions.parse(requested));
+        accepted.retainAll(StratoServer.SUPPORTED_OPTIONS);
+        options = Collections.unmodifiableSet(accepted);
+        return ProtocolOptions.format(options);
+    }
+
+    /**
+     * @param option name of a protocol option
+     * @return whether the option was agreed on with the client
+     */
+    boolean hasOption(String option) {
+        return options.contains(option);
+    }
+
     void disconnectClient() {
+        if (disconnected.getAndSet(true)) // already disconnected, e.g. by a failed pipelined query
+            return;
         System.err.println("Client with port " + commandSocket.getPort() + " disconnected");
-        server.unregisterClient(authModule.getToken());
+        if (session != null)
+            server.unregisterClient(session.getToken());
     }
 
     public int getClientPort() {
         return commandSocket.getPort();
     }
-}
\ No newline at end of file
+}
@@ -1,13 +1,35 @@
 package server;
 
-import java.io.BufferedReader;
+import utils.DataHash;
+import utils.ProtocolOptions;
+import utils.StratoUtils;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.URL;
-import java.util.HashMap;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class StratoServer {
 
@@ -16,95 +38,393 @@ public class StratoServer {
     static final int DATA_PORT = 6666; // package visibility only
     // because the client shouldn't know about it directly
 
-    ServerSocket authServerSocket, dataServerSocket;
+    // server engine: "blocking" (one task per connection) or "nio" (selector event loops)
+    static final String ENGINE = System.getProperty("strato.engine", "blocking");
+    static final int EVENT_LOOPS = Integer.getInteger("strato.eventLoops", Runtime.getRuntime().availableProcessors());
+
+    // connection execution mode ("virtual", "pool" or "thread") and the limits of the bounded pool
+    static final String CONNECTION_MODE = System.getProperty("strato.connections", "pool");
+    static final int MAX_WORKERS = Integer.getInteger("strato.workers", 256);
+    static final int ADMISSION_QUEUE_SIZE = Integer.getInteger("strato.queue", 1024);
+
+    // threads, queue and token read timeout (in milliseconds) of data socket handshakes. they run apart from
+    // the session workers, which wait for them
+    static final int HANDSHAKE_THREADS = Integer.getInteger("strato.handshakeThreads", 4);
+    static final int HANDSHAKE_QUEUE_SIZE = Integer.getInteger("strato.handshakeQueue", 256);
+    static final int HANDSHAKE_TIMEOUT = Integer.getInteger("strato.handshakeTimeout", 2000);
+
+    // session lifetime and idle timeout (in milliseconds), and how often expired sessions are evicted
+    static final long SESSION_LIFETIME = Long.getLong("strato.sessionLifetime", 60 * 60 * 1000L);
+    static final long SESSION_IDLE_TIMEOUT = Long.getLong("strato.sessionIdleTimeout", 15 * 60 * 1000L);
+    static final long SESSION_EVICTION_INTERVAL = 60 * 1000L;
+
+    // threads hashing passwords at once, verifications allowed to wait for them, and how long a verification is cached
+    static final int VERIFIER_THREADS = Integer.getInteger("strato.verifierThreads", Runtime.getRuntime().availableProcessors());
+    static final int VERIFIER_QUEUE_SIZE = Integer.getInteger("strato.verifierQueue", 256);
+    static final long VERIFICATION_CACHE_TTL = Long.getLong("strato.verificationCacheTtl", 60 * 1000L);
+
+    // API response cache size, and time to live (in milliseconds) of past APOD dates, recent APOD dates, and the Insight feed
+    static final int RESPONSE_CACHE_SIZE = Integer.getInteger("strato.responseCacheSize", 1024);
+    static final long APOD_PAST_TTL = Long.getLong("strato.apodPastTtl", 7 * 24 * 60 * 60 * 1000L);
+    static final long APOD_RECENT_TTL = Long.getLong("strato.apodRecentTtl", 10 * 60 * 1000L);
+    static final long INSIGHT_TTL = Long.getLong("strato.insightTtl", 10 * 60 * 1000L);
+    // how often (in milliseconds) the parsed Insight feed is refreshed
+    static final long INSIGHT_REFRESH_INTERVAL = Long.getLong("strato.insightRefresh", INSIGHT_TTL);
+
+    // directory and maximum size (in bytes) of the on-disk APOD image store
+    static final String IMAGE_STORE_DIRECTORY = System.getProperty("strato.imageStore", "image-cache");
+    static final long IMAGE_STORE_CAPACITY = Long.getLong("strato.imageStoreCapacity", 512L * 1024 * 1024);
+
+    // protocol options the server accepts, the chunk size of streamed images,
+    // and the minimum size (in bytes) of the batch of all Insight sols sent compressed with the "deflate" option
+    static final Set<String> SUPPORTED_OPTIONS = supportedOptions();
+    static final int STREAM_CHUNK_SIZE = 16 * 1024;
+    static final int DEFLATE_THRESHOLD = Integer.getInteger("strato.deflateThreshold", 256);
+
+    // threads and queue of the pool running pipelined queries, and the maximum outstanding pipelined queries per client
+    static final int QUERY_THREADS = Integer.getInteger("strato.queryThreads", 64);
+    static final int QUERY_QUEUE_SIZE = Integer.getInteger("strato.queryQueue", 1024);
+    static final int PIPELINE_DEPTH = Integer.getInteger("strato.pipelineDepth", 16);
+
+    // maximum number of items in a batch query, and how many items of a batch are fetched at once
+    static final int MAX_BATCH_SIZE = Integer.getInteger("strato.maxBatchSize", 100);
+    static final int BATCH_CONCURRENCY = Integer.getInteger("strato.batchConcurrency", 4);
+    // threads fetching batch items for all clients together
+    static final int BATCH_THREADS = Integer.getInteger("strato.batchThreads", 32);
 
-    private final HashMap<String, String> registeredClients;
+    // upstream connect and read timeouts (in milliseconds), and maximum concurrent requests per upstream host
+    static final int UPSTREAM_CONNECT_TIMEOUT = Integer.getInteger("strato.upstreamConnectTimeout", 5000);
+    static final int UPSTREAM_READ_TIMEOUT = Integer.getInteger("strato.upstreamReadTimeout", 15000);
+    static final int UPSTREAM_MAX_PER_HOST = Integer.getInteger("strato.upstreamMaxPerHost", 16);
+    // maximum concurrent streamed image downloads per upstream host, limited apart from the other requests
+    static final int UPSTREAM_MAX_STREAMS_PER_HOST = Integer.getInteger("strato.upstreamMaxStreamsPerHost", 8);
+
+    // TCP_NODELAY and the socket buffer sizes (in bytes, 0 keeps the OS default) of command and data connections,
+    // and the size of the buffer the command messages of a turn are coalesced in
+    static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("strato.tcpNoDelay", "true"));
+    static final int SOCKET_SEND_BUFFER = Integer.getInteger("strato.sendBuffer", 0);
+    static final int SOCKET_RECEIVE_BUFFER = Integer.getInteger("strato.receiveBuffer", 0);
+    static final int COMMAND_BUFFER_SIZE = Integer.getInteger("strato.commandBuffer", 8 * 1024);
+    // maximum bytes queued for a client of the NIO engine, writers wait (up to the socket timeout) while it is full
+    static final int MAX_OUTBOUND_BYTES = Integer.getInteger("strato.maxOutbound", 1024 * 1024);
+
+    ServerSocket authServerSocket;
+    ServerSocketChannel dataServerSocket;
+
+    private final ExecutorService connectionExecutor;
+    private final ExecutorService queryExecutor;
+    private final ExecutorService batchExecutor;
+    private final DataSocketAcceptor dataSocketAcceptor;
+
+    private final SessionRegistry registeredClients;
+    private final TokenIssuer tokenIssuer;
+    private final UserStore userStore;
+    private final CredentialVerifier credentialVerifier;
+    private final ResponseCache<String, String> responseCache;
+    private final SingleFlight<String, String> apiRequests = new SingleFlight<>();
+    private final SingleFlight<String, byte[]> imageDownloads = new SingleFlight<>();
+    private final Map<String, ImageRelay> imageRelays = new ConcurrentHashMap<>(); // streamed downloads by url
+    private final ExecutorService relayExecutor = Executors.newCachedThreadPool(ConnectionExecutors.namedFactory("strato-relay-"));
+    private final ImageStore imageStore;
+    private final UpstreamClient upstream;
+    private final InsightService insightService;
 
     public static void main(String[] args) {
         try {
-            new StratoServer();
+            StratoServer server = new StratoServer();
+            if (ENGINE.equals("nio"))
+                new NioServerEngine(server, EVENT_LOOPS).serve();
+            else
+                server.serve();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     public StratoServer() throws IOException {
+        dataServerSocket = ServerSocketChannel.open();
+        dataServerSocket.bind(new InetSocketAddress(DATA_PORT));
+        userStore = new UserStore(Paths.get(System.getProperty("user.dir"), "users.txt"));
+        userStore.watch();
+        credentialVerifier = new CredentialVerifier(VERIFIER_THREADS, VERIFIER_QUEUE_SIZE, VERIFICATION_CACHE_TTL);
+        upstream = new UpstreamClient(UPSTREAM_CONNECT_TIMEOUT, UPSTREAM_READ_TIMEOUT, UPSTREAM_MAX_PER_HOST, UPSTREAM_MAX_STREAMS_PER_HOST);
+        responseCache = new ResponseCache<>(RESPONSE_CACHE_SIZE);
+        // hits are only counted on the request path, the totals are reported once at shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println("Response cache: " + responseCache)));
+        insightService = new InsightService(() -> apiRequest(new URL(StratoUtils.INSIGHT_URL)));
+        insightService.startRefresh(INSIGHT_REFRESH_INTERVAL);
+        imageStore = new ImageStore(Paths.get(System.getProperty("user.dir"), IMAGE_STORE_DIRECTORY), IMAGE_STORE_CAPACITY);
+        registeredClients = new SessionRegistry();
+        tokenIssuer = new TokenIssuer(registeredClients, SESSION_LIFETIME, SESSION_IDLE_TIMEOUT);
+        tokenIssuer.startEviction(SESSION_EVICTION_INTERVAL);
+        connectionExecutor = ConnectionExecutors.create(CONNECTION_MODE, MAX_WORKERS, ADMISSION_QUEUE_SIZE);
+        ThreadPoolExecutor queryPool = new ThreadPoolExecutor(QUERY_THREADS, QUERY_THREADS, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUERY_QUEUE_SIZE), ConnectionExecutors.namedFactory("strato-query-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        queryPool.allowCoreThreadTimeOut(true);
+        queryExecutor = queryPool;
+        // batch items are fetched apart from the query pool, which may be running the batch itself.
+        // once the batch pool is full, the query thread running the batch fetches the item itself
+        ThreadPoolExecutor batchPool = new ThreadPoolExecutor(BATCH_THREADS, BATCH_THREADS, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(BATCH_THREADS), ConnectionExecutors.namedFactory("strato-batch-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        batchPool.allowCoreThreadTimeOut(true);
+        batchExecutor = batchPool;
+        dataSocketAcceptor = new DataSocketAcceptor(dataServerSocket,
+                ConnectionExecutors.newBoundedPool("strato-handshake-", HANDSHAKE_THREADS, HANDSHAKE_QUEUE_SIZE));
+        Thread acceptorThread = new Thread(dataSocketAcceptor, "strato-data-acceptor");
+        acceptorThread.setDaemon(true);
+        acceptorThread.start();
+    }
+
+    private static Set<String> supportedOptions() {
+        Set<String> options = new HashSet<>(Arrays.asList(ProtocolOptions.STREAM, ProtocolOptions.PIPELINE, ProtocolOptions.RANGES,
+                ProtocolOptions.MUX, ProtocolOptions.CREDIT, ProtocolOptions.DEFLATE));
+        if (DataHash.isCrc32cSupported())
+            options.add(ProtocolOptions.CRC32C);
+        return options;
+    }
+
+    /**
+     * runs the blocking engine: accepts command connections and submits a handler for each of them
+     *
+     * @throws IOException from stream and socket operations
+     */
+    void serve() throws IOException {
         authServerSocket = new ServerSocket(AUTH_PORT);
-        dataServerSocket = new ServerSocket(DATA_PORT);
-        registeredClients = new HashMap<>();
-        System.out.println("Server initiated.");
+        System.out.println("Server initiated (" + CONNECTION_MODE + " connections).");
         while (true) {
-            new StratoClientHandler(authServerSocket.accept(), this).start();
-            System.out.println("Client Connected.");
+            Socket commandSocket = authServerSocket.accept();
+            configureSocket(commandSocket);
+            try {
+                StratoClientHandler handler = new StratoClientHandler(commandSocket, this);
+                connectionExecutor.execute(handler);
+                System.out.println("Client Connected.");
+                if (ConnectionExecutors.hasQueuedTasks(connectionExecutor))
+                    handler.notifyQueued();
+            } catch (RejectedExecutionException e) {
+                rejectClient(commandSocket);
+            }
+        }
+    }
+
+    /**
+     * applies the socket options of the server to an accepted command or data socket
+     * messages are coalesced into whole turns before they are written, so Nagle's algorithm only adds latency.
+     *
+     * @param socket the accepted socket
+     * @throws SocketException if an option cannot be set
+     */
+    static void configureSocket(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(TCP_NO_DELAY);
+        if (SOCKET_SEND_BUFFER > 0)
+            socket.setSendBufferSize(SOCKET_SEND_BUFFER);
+        if (SOCKET_RECEIVE_BUFFER > 0)
+            socket.setReceiveBufferSize(SOCKET_RECEIVE_BUFFER);
+    }
+
+    /**
+     * sends an Auth_Fail message to a client that could not be admitted and closes its socket
+     *
+     * @param commandSocket the command socket of the rejected client
+     */
+    private void rejectClient(Socket commandSocket) {
+        System.err.println("Server busy, rejecting client " + commandSocket.getPort());
+        try (Socket rejected = commandSocket) {
+            rejected.getOutputStream().write(StratoUtils.makeAuthMessage((byte) 2, "Server is busy, try again later."));
+        } catch (IOException e) {
+            System.err.println("Could not reject client: " + e.getMessage());
         }
     }
 
+    ExecutorService getConnectionExecutor() {
+        return connectionExecutor;
+    }
+
+    /**
+     * @return the pool running pipelined queries, which rejects queries once its queue is full
+     */
+    ExecutorService getQueryExecutor() {
+        return queryExecutor;
+    }
+
     /**
-     * registers a given client to the map of logged in users
+     * @return the bounded pool fetching the items of batch queries, the concurrency of each batch is bounded by BATCH_CONCURRENCY
+     */
+    ExecutorService getBatchExecutor() {
+        return batchExecutor;
+    }
+
+    UserStore getUserStore() {
+        return userStore;
+    }
+
+    CredentialVerifier getCredentialVerifier() {
+        return credentialVerifier;
+    }
+
+    /**
+     * opens a stream to an image, for relaying it while it is downloaded.
+     * concurrent streams of the same url share a single download, which adds the image to the image store
      *
-     * @param username username of the client
-     * @param address  IP address of the client
-     * @param port     port number of the client
-     * @return the token for the registered user, or null if the user is already logged in
+     * @param date the APOD date of the image
+     * @param url  url of the image
+     * @return the stream of the image, which fails if the image could not be downloaded, to be closed by the caller
+     * @throws IOException if the download could not be started
+     */
+    InputStream openImage(String date, String url) throws IOException {
+        ImageRelay relay = new ImageRelay(() -> {
+            InputStream image = upstream.openStream(new URL(url));
+            if (image == null)
+                throw new IOException("Image could not be downloaded");
+            return image;
+        }, imageStore, date);
+        ImageRelay running;
+        while ((running = imageRelays.putIfAbsent(url, relay)) != null) {
+            InputStream reader = running.newReader();
+            if (reader != null)
+                return reader;
+            imageRelays.remove(url, running); // over but not removed yet, start a new download
+        }
+        InputStream reader = relay.newReader(); // not null, the download holds a reference
+        try {
+            relayExecutor.execute(() -> {
+                try {
+                    relay.run();
+                } finally {
+                    imageRelays.remove(url, relay);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            imageRelays.remove(url, relay);
+            IOException failure = new IOException("Image download could not be started", e);
+            relay.cancel(failure); // fails the streams that joined the relay meanwhile
+            reader.close();
+            throw failure;
+        }
+        return reader;
+    }
+
+    /**
+     * @return the sols of the Insight feed, or null if the feed is not available
+     * @throws IOException from stream and socket operations
+     */
+    InsightService.Sol[] getInsightSols() throws IOException {
+        return insightService.getSols();
+    }
+
+    /**
+     * @return the compressed batch of all Insight sols, or null if the feed is not available or it is not compressed
+     * @throws IOException from stream and socket operations
+     */
+    InsightService.CompressedBatch getCompressedInsightBatch() throws IOException {
+        return insightService.getCompressedBatch();
+    }
+
+    /**
+     * @param date an APOD date
+     * @return the stored image file of the date, or null if it is not stored
      */
-    public String registerClient(String username, String address, int port) {
-        String token = generateToken(username);
-        String connectionInfo = String.format("%s:%d", address.substring(1), port);
+    Path getStoredImage(String date) {
+        return imageStore.lookup(date);
+    }
 
-        if (registeredClients.put(token, connectionInfo) == null) // new entry to the map
-            return token;
-        return null;
+    /**
+     * registers a given client to the registry of logged in users with a newly issued token
+     * a user may be logged in with several sessions at once.
+     *
+     * @param username   username of the client
+     * @param address    IP address of the client
+     * @param port       port number of the client
+     * @param dataSocket whether the client will connect a data socket (false for multiplexed clients)
+     * @return the session of the registered user
+     */
+    ClientSession registerClient(String username, InetAddress address, int port, boolean dataSocket) {
+        ClientSession session = tokenIssuer.issue(username, address, port);
+        if (dataSocket)
+            dataSocketAcceptor.expect(session.getToken());
+        return session;
     }
 
     /**
-     * unregisters a user from the map of logged-in users
+     * unregisters a user from the registry of logged-in users
      *
      * @param token token of the user to be removed
      */
-    public void unregisterClient(String token) {
-        registeredClients.remove(token);
+    void unregisterClient(SessionToken token) {
+        registeredClients.unregister(token);
+        dataSocketAcceptor.cancel(token);
     }
 
     /**
-     * generates a token for a client based on their username
+     * waits for the client with the given token to connect its data socket
      *
-     * @param name the username user to generate a token
-     * @return the token
+     * @param token the token of the client
+     * @return the data socket of the client
+     * @throws IOException if the data socket does not connect within the socket timeout
      */
-    public String generateToken(String name) {
-        String upperName = name.toUpperCase();
-        StringBuilder token = new StringBuilder();
-        for (int i = 0; i < 4; i++)
-            token.append((int) upperName.toUpperCase().charAt(i)).append("-");
+    Socket getDataSocket(SessionToken token) throws IOException {
+        return dataSocketAcceptor.await(token, StratoUtils.SOCKET_TIMEOUT_DURATION);
+    }
 
-        token.append((int) (upperName.charAt(upperName.length() - 2))).
-                append("-").
-                append((int) (upperName.charAt(upperName.length() - 1)));
-        return token.toString();
+    /**
+     * returns the response of an API request, from the response cache if possible.
+     * concurrent requests for the same url share a single upstream request.
+     *
+     * @param url the url to which the request is to be sent
+     * @return the response if the request was successful, null otherwise
+     * @throws IOException from stream and socket operations
+     */
+    public String apiRequest(URL url) throws IOException {
+        String key = url.toString();
+        String response = responseCache.get(key);
+        if (response != null)
+            return response;
+        return apiRequests.execute(key, () -> {
+            String fetched = fetch(url);
+            if (fetched != null)
+                responseCache.put(key, fetched, timeToLive(key));
+            return fetched;
+        });
     }
 
     /**
-     * starts a data socket and returns once a client connects to it
+     * downloads an APOD image and keeps it in the image store,
+     * sharing a single download between concurrent requests for the same url
      *
-     * @return the created data socket
+     * @param date the APOD date of the image
+     * @param url  url of the image
+     * @return the image as a byte array, shared with the other requesters so it must not be modified
      * @throws IOException from stream and socket operations
      */
-    public Socket getDataSocket() throws IOException {
-        return dataServerSocket.accept();
+    public byte[] downloadImage(String date, String url) throws IOException {
+        return imageDownloads.execute(url, () -> {
+            byte[] image = upstream.get(new URL(url));
+            if (image == null)
+                throw new IOException("Image could not be downloaded");
+            imageStore.store(date, image);
+            return image;
+        });
     }
 
     /**
-     * checks whether a client with the given info is registered
+     * decides how long the response of a url may be cached.
+     * APOD entries of past dates never change, while the current date and the Insight feed may be updated.
      *
-     * @param token   the token of the client
-     * @param address the IP address of the client
-     * @param port    the port number of the client
-     * @return whether the token is registered or not
+     * @param url the url of the request
+     * @return the time to live in milliseconds, 0 if the response should not be cached
      */
-    public boolean isRegisteredToken(String token, String address, int port) {
-        String info = address.substring(1) + ":" + port;
-        String registeredInfo = registeredClients.get(token);
-        return registeredInfo != null && registeredInfo.equals(info);
+    private static long timeToLive(String url) {
+        if (url.startsWith(StratoUtils.INSIGHT_URL))
+            return INSIGHT_TTL;
+        if (!url.startsWith(StratoUtils.APOD_URL))
+            return 0;
+        try {
+            LocalDate date = LocalDate.parse(url.substring(StratoUtils.APOD_URL.length()));
+            return date.isBefore(LocalDate.now(ZoneOffset.UTC).minusDays(1)) ? APOD_PAST_TTL : APOD_RECENT_TTL;
+        } catch (DateTimeParseException e) {
+            return APOD_RECENT_TTL;
+        }
     }
 
     /**
@@ -114,25 +434,9 @@ public class StratoServer {
      * @return the response if the request was successful, null otherwise
      * @throws IOException from stream and socket operations
      */
-    public String apiRequest(URL url) throws IOException {
-        HttpURLConnection httpConnection = (HttpURLConnection) url.openConnection();
-        httpConnection.setRequestMethod("GET");
-        httpConnection.setRequestProperty("Content-Type", "application/json");
-        int status = httpConnection.getResponseCode();
-        System.out.println("RESPONSE CODE: " + status);
-        if (status != 200)
-            return null;
-        BufferedReader reader = new BufferedReader(new InputStreamReader(httpConnection.getInputStream()));
-        String input;
-        StringBuilder content = new StringBuilder();
-
-        while ((input = reader.readLine()) != null)
-            content.append(input);
-
-        reader.close();
-        httpConnection.disconnect();
-
-        return content.toString();
+    private String fetch(URL url) throws IOException {
+        byte[] response = upstream.get(url);
+        return response == null ? null : new String(response, StandardCharsets.UTF_8);
     }
 }
 
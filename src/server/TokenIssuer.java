@@ -0,0 +1,79 @@
+package server;
+
+import utils.StratoUtils;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * this class issues session tokens and registers the new sessions directly in the session registry
+ * tokens are TOKEN_LENGTH random characters drawn from a per-thread SecureRandom,
+ * so the same user can hold several sessions and tokens cannot be guessed from the username.
+ * expired and idle sessions are evicted periodically.
+ */
+final class TokenIssuer {
+
+    // 64 url-safe characters, a token never contains the ',' used to separate it in the Auth_Success message
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
+    private final SessionRegistry registry;
+    private final long lifetime;
+    private final long idleTimeout;
+
+    /**
+     * @param registry    the registry in which issued sessions are registered
+     * @param lifetime    maximum lifetime of a session in milliseconds
+     * @param idleTimeout maximum time in milliseconds between two queries of a session
+     */
+    TokenIssuer(SessionRegistry registry, long lifetime, long idleTimeout) {
+        this.registry = registry;
+        this.lifetime = lifetime;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * creates and registers a session with a new token
+     *
+     * @param username username of the client
+     * @param address  IP address of the client
+     * @param port     port number of the client
+     * @return the registered session
+     */
+    ClientSession issue(String username, InetAddress address, int port) {
+        while (true) {
+            long now = System.currentTimeMillis();
+            ClientSession session = new ClientSession(newToken(), username, address, port, now + lifetime, idleTimeout);
+            if (registry.registerIfAbsent(session)) // a collision is practically impossible, but retry if it happens
+                return session;
+        }
+    }
+
+    /**
+     * @return a token of TOKEN_LENGTH random characters
+     */
+    private static SessionToken newToken() {
+        byte[] random = new byte[StratoUtils.TOKEN_LENGTH];
+        RANDOM.get().nextBytes(random);
+        for (int i = 0; i < random.length; i++)
+            random[i] = ALPHABET[random[i] & 63];
+        return new SessionToken(random);
+    }
+
+    /**
+     * starts a background thread that evicts expired and idle sessions
+     *
+     * @param interval the time between two evictions in milliseconds
+     */
+    void startEviction(long interval) {
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+                ConnectionExecutors.namedFactory("strato-session-evictor-"));
+        evictor.scheduleWithFixedDelay(() -> registry.evictExpired(System.currentTimeMillis()),
+                interval, interval, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,151 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * this class performs all upstream HTTP requests of the server (API requests and image downloads)
+ * connections are kept alive and reused between requests: responses are always read to the end and closed,
+ * never disconnected, so the JVM's keep-alive cache can hand the connection to the next request to the same host.
+ * requests have connect and read timeouts, and the number of concurrent requests per host is limited.
+ * streamed responses, which are held open while they are relayed, are limited apart from the other requests,
+ * so long downloads cannot take the permits of short API requests.
+ */
+final class UpstreamClient {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int maxPerHost;
+    private final int maxStreamsPerHost;
+    private final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Semaphore> streamPermits = new ConcurrentHashMap<>();
+
+    /**
+     * @param connectTimeout connect timeout in milliseconds
+     * @param readTimeout    read timeout in milliseconds
+     * @param maxPerHost        maximum number of concurrent requests per host, apart from streamed responses
+     * @param maxStreamsPerHost maximum number of concurrent streamed responses per host
+     */
+    UpstreamClient(int connectTimeout, int readTimeout, int maxPerHost, int maxStreamsPerHost) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.maxPerHost = maxPerHost;
+        this.maxStreamsPerHost = maxStreamsPerHost;
+        if (System.getProperty("http.maxConnections") == null) // size of the keep-alive cache per host
+            System.setProperty("http.maxConnections", String.valueOf(maxPerHost + maxStreamsPerHost));
+    }
+
+    /**
+     * performs a GET request and reads the whole response
+     *
+     * @param url the url to which the request is to be sent
+     * @return the response body if the request was successful, null otherwise
+     * @throws IOException from stream and socket operations, or if the host is busy for longer than the connect timeout
+     */
+    byte[] get(URL url) throws IOException {
+        try (InputStream response = open(url, hostPermits, maxPerHost)) {
+            if (response == null)
+                return null;
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = response.read(buffer)) != -1)
+                content.write(buffer, 0, length);
+            return content.toByteArray();
+        }
+    }
+
+    /**
+     * performs a GET request and returns the response body as a stream, for relaying it while it is read.
+     * the stream holds one of the host's stream permits until it is closed, the permits of other requests are not used.
+     *
+     * @param url the url to which the request is to be sent
+     * @return the stream of the response body if the request was successful, null otherwise
+     * @throws IOException from stream and socket operations, or if the host is busy for longer than the connect timeout
+     */
+    InputStream openStream(URL url) throws IOException {
+        return open(url, streamPermits, maxStreamsPerHost);
+    }
+
+    /**
+     * performs a GET request, holding a permit of the host until the returned stream is closed
+     *
+     * @param permitsByHost the permits of the hosts, by host name
+     * @param limit         the number of permits of a host
+     */
+    private InputStream open(URL url, ConcurrentHashMap<String, Semaphore> permitsByHost, int limit) throws IOException {
+        Semaphore permits = permitsByHost.computeIfAbsent(url.getHost(), host -> new Semaphore(limit));
+        try {
+            if (!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS))
+                throw new IOException("Too many concurrent requests to " + url.getHost());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + url.getHost(), e);
+        }
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setRequestMethod("GET");
+            connection.setRequestProperty("Accept", "application/json, image/*");
+            int status = connection.getResponseCode();
+            System.out.println("RESPONSE CODE: " + status);
+            if (status != 200) {
+                drain(connection.getErrorStream());
+                permits.release();
+                return null;
+            }
+            return new PermitReleasingStream(connection.getInputStream(), permits);
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * reads an error response to the end so its connection can be reused
+     */
+    private static void drain(InputStream errorStream) throws IOException {
+        if (errorStream == null)
+            return;
+        try (InputStream error = errorStream) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (error.read(buffer) != -1) {
+                // discard
+            }
+        }
+    }
+
+    /**
+     * this class releases the host permit of a response when the response stream is closed
+     */
+    private static final class PermitReleasingStream extends FilterInputStream {
+        private final Semaphore permits;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        PermitReleasingStream(InputStream in, Semaphore permits) {
+            super(in);
+            this.permits = permits;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (released.compareAndSet(false, true))
+                    permits.release();
+            }
+        }
+    }
+}
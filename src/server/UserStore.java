@@ -0,0 +1,110 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * this class keeps the users of the server in memory, loaded once from the users file
+ * the file lists each user as a username line, a password line, and an empty line.
+ * the file is watched for changes, and a reloaded table replaces the current one in a single step,
+ * so lookups never see a half-loaded table and never wait for a reload.
+ */
+final class UserStore {
+
+    private final Path usersFile;
+    private volatile Map<String, String> passwords;
+
+    /**
+     * @param usersFile the path of the users file
+     * @throws IOException if the users file cannot be read
+     */
+    UserStore(Path usersFile) throws IOException {
+        this.usersFile = usersFile;
+        passwords = load(usersFile);
+        System.out.println("Loaded " + passwords.size() + " users.");
+    }
+
+    /**
+     * @param username the given username
+     * @return the stored password of the user, or null if there is no such user
+     */
+    String getPassword(String username) {
+        return passwords.get(username);
+    }
+
+    /**
+     * reads the users file into a new table
+     *
+     * @param usersFile the path of the users file
+     * @return the table of usernames to passwords
+     * @throws IOException from file operations
+     */
+    private static Map<String, String> load(Path usersFile) throws IOException {
+        Map<String, String> table = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(usersFile, StandardCharsets.UTF_8)) {
+            String username;
+            while ((username = reader.readLine()) != null) {
+                if (username.isEmpty())
+                    continue;
+                String password = reader.readLine();
+                if (password == null)
+                    break;
+                table.put(username, password);
+                reader.readLine(); // skip empty line
+            }
+        }
+        return Collections.unmodifiableMap(table);
+    }
+
+    /**
+     * starts a background thread that reloads the users when the users file changes
+     *
+     * @throws IOException if the watch service cannot be created
+     */
+    void watch() throws IOException {
+        Path directory = usersFile.toAbsolutePath().getParent();
+        WatchService watcher = directory.getFileSystem().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread watchThread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents())
+                        if (usersFile.getFileName().equals(event.context()))
+                            changed = true;
+                    key.reset();
+                    if (changed)
+                        reload();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                System.err.println("Stopped watching the users file");
+            }
+        }, "strato-users-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * reloads the users file and swaps in the new table, keeping the current one if the file cannot be read
+     */
+    private void reload() {
+        try {
+            passwords = load(usersFile);
+            System.out.println("Reloaded " + passwords.size() + " users.");
+        } catch (IOException e) {
+            System.err.println("Could not reload the users file: " + e.getMessage());
+        }
+    }
+}
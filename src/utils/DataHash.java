@@ -0,0 +1,141 @@
+package utils;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * this class computes the hash of a file incrementally, so the file can be hashed while it is streamed
+ * the result is the same as StratoUtils.generateHash() of the whole file.
+ * by default the hash is the original Arrays.hashCode() format ("img-123"). with the "crc32c" protocol option
+ * it is a CRC32C checksum ("img-crc32c-1a2b3c4d"), which the JVM computes with hardware instructions.
+ * CRC32C exists since Java 9, so it is looked up reflectively and is not available on older JVMs.
+ */
+public final class DataHash {
+
+    private static final Constructor<? extends Checksum> CRC32C = findCrc32c();
+    private static final Method UPDATE_BUFFER = findUpdateBuffer();
+
+    private final int type;
+    private final Checksum checksum; // null for the original format
+    private int hashCode = 1;
+
+    /**
+     * @param type type of the file (1 for images, 2 for JSON strings)
+     */
+    public DataHash(int type) {
+        this.type = type;
+        checksum = null;
+    }
+
+    /**
+     * @param type   type of the file (1 for images, 2 for JSON strings)
+     * @param crc32c whether the hash is a CRC32C checksum instead of the original format
+     * @throws UnsupportedOperationException if CRC32C is requested but not supported by the JVM
+     */
+    public DataHash(int type, boolean crc32c) {
+        this.type = type;
+        checksum = crc32c ? newCrc32c() : null;
+    }
+
+    /**
+     * @return whether the running JVM supports CRC32C checksums
+     */
+    public static boolean isCrc32cSupported() {
+        return CRC32C != null;
+    }
+
+    /**
+     * adds bytes of the file to the hash
+     *
+     * @param data   array holding the bytes
+     * @param offset position of the first byte
+     * @param length number of bytes
+     */
+    public void update(byte[] data, int offset, int length) {
+        if (checksum != null) {
+            checksum.update(data, offset, length);
+            return;
+        }
+        int hash = hashCode;
+        for (int i = offset; i < offset + length; i++)
+            hash = 31 * hash + data[i];
+        hashCode = hash;
+    }
+
+    /**
+     * adds the bytes of a buffer, from its position to its limit, to the hash
+     *
+     * @param data the buffer holding the bytes
+     */
+    public void update(ByteBuffer data) {
+        if (checksum != null) {
+            updateChecksum(data.duplicate());
+            return;
+        }
+        int hash = hashCode;
+        for (int i = data.position(); i < data.limit(); i++)
+            hash = 31 * hash + data.get(i);
+        hashCode = hash;
+    }
+
+    /**
+     * @return the hash code in the protocol format, e.g. "img-123" or "img-crc32c-1a2b3c4d"
+     */
+    @Override
+    public String toString() {
+        String prefix = type == 1 ? "img-" : "str-";
+        if (checksum != null)
+            return prefix + "crc32c-" + String.format("%08x", checksum.getValue());
+        return prefix + hashCode;
+    }
+
+    /**
+     * adds a buffer to the checksum, directly if the JVM can (direct buffers are not copied), otherwise through an array
+     */
+    private void updateChecksum(ByteBuffer data) {
+        if (UPDATE_BUFFER != null) {
+            try {
+                UPDATE_BUFFER.invoke(checksum, data);
+                return;
+            } catch (ReflectiveOperationException e) {
+                // fall back to copying
+            }
+        }
+        byte[] chunk = new byte[Math.min(data.remaining(), 64 * 1024)];
+        while (data.hasRemaining()) {
+            int length = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, length);
+            checksum.update(chunk, 0, length);
+        }
+    }
+
+    private static Checksum newCrc32c() {
+        if (CRC32C == null)
+            throw new UnsupportedOperationException("CRC32C is not supported by this JVM");
+        try {
+            return CRC32C.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+
+    private static Constructor<? extends Checksum> findCrc32c() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static Method findUpdateBuffer() {
+        if (CRC32C == null)
+            return null;
+        try {
+            return CRC32C.getDeclaringClass().getMethod("update", ByteBuffer.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
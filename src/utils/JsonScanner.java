@@ -0,0 +1,273 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * this class scans a JSON document for fields in a single pass, without building a tree or intermediate strings
+ * nextField() moves to the next field of any object, at any depth. the name of the field and of the object
+ * containing it can then be compared, and its value read if needed. values that are not read are skipped.
+ * the document is any CharSequence, e.g. a String or a CharBuffer over a decoded response.
+ */
+public final class JsonScanner {
+
+    // powers of ten that are exact doubles, for parsing short decimals without rounding errors
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final CharSequence json;
+    private final int end;
+    private int position;
+
+    // open objects and arrays, with the bounds of the field name that each one is the value of (-1 if none)
+    private char[] containers = new char[16];
+    private int[] nameStarts = new int[16];
+    private int[] nameEnds = new int[16];
+    private int depth;
+
+    // the current field: bounds of its name (without quotes) and the position of its value
+    private int nameStart = -1;
+    private int nameEnd = -1;
+    private int valueStart = -1;
+
+    /**
+     * @param json the JSON document
+     */
+    public JsonScanner(CharSequence json) {
+        this.json = json;
+        end = json.length();
+    }
+
+    /**
+     * moves to the next field of any object in the document
+     *
+     * @return whether a field was found, false at the end of the document
+     */
+    public boolean nextField() {
+        CharSequence json = this.json;
+        boolean expectName = valueStart < 0 && depth > 0 && containers[depth - 1] == '{';
+        int i = valueStart >= 0 ? valueStart : position; // after a field, continue with its value
+        valueStart = -1;
+        while (i < end) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                if (expectName) {
+                    nameStart = i + 1;
+                    nameEnd = skipString(i) - 1;
+                    i = nameEnd + 1;
+                    while (i < end && ((c = json.charAt(i)) == ':' || isWhitespace(c)))
+                        i++;
+                    position = valueStart = i;
+                    return true;
+                }
+                i = skipString(i);
+                nameStart = nameEnd = -1;
+            } else if (c == '{' || c == '[') {
+                push(c);
+                i++;
+                expectName = c == '{';
+            } else if (c == '}' || c == ']') {
+                if (depth > 0)
+                    depth--;
+                i++;
+                nameStart = nameEnd = -1;
+            } else if (c == ',') {
+                i++;
+                expectName = depth > 0 && containers[depth - 1] == '{';
+                nameStart = nameEnd = -1;
+            } else if (c == ':' || isWhitespace(c)) {
+                i++;
+            } else { // number, true, false or null
+                i = scalarEnd(i);
+                nameStart = nameEnd = -1;
+            }
+        }
+        position = i;
+        return false;
+    }
+
+    /**
+     * @param name a field name
+     * @return whether the current field has the given name
+     */
+    public boolean nameEquals(String name) {
+        return regionEquals(nameStart, nameEnd, name);
+    }
+
+    /**
+     * @param name a field name
+     * @return whether the object containing the current field is the value of a field with the given name
+     */
+    public boolean parentNameEquals(String name) {
+        return depth > 0 && regionEquals(nameStarts[depth - 1], nameEnds[depth - 1], name);
+    }
+
+    /**
+     * @return the number of objects and arrays containing the current field, 1 for fields of the root object
+     */
+    public int depth() {
+        return depth;
+    }
+
+    /**
+     * @return whether the value of the current field is a string
+     */
+    public boolean isString() {
+        return valueStart >= 0 && valueStart < end && json.charAt(valueStart) == '"';
+    }
+
+    /**
+     * @return whether the value of the current field is an object
+     */
+    public boolean isObject() {
+        return valueStart >= 0 && valueStart < end && json.charAt(valueStart) == '{';
+    }
+
+    /**
+     * @return whether the value of the current field is a number
+     */
+    public boolean isNumber() {
+        if (valueStart < 0 || valueStart >= end)
+            return false;
+        char c = json.charAt(valueStart);
+        return c == '-' || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * @return the value of the current field, which must be a string, with its escapes resolved
+     */
+    public String stringValue() {
+        StringBuilder value = new StringBuilder();
+        int i = valueStart + 1;
+        while (i < end) {
+            char c = json.charAt(i++);
+            if (c == '"')
+                break;
+            if (c != '\\' || i >= end) {
+                value.append(c);
+                continue;
+            }
+            char escaped = json.charAt(i++);
+            switch (escaped) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 <= end) {
+                        value.append((char) Integer.parseInt(json.subSequence(i, i + 4).toString(), 16));
+                        i += 4;
+                    }
+                    break;
+                default: // '"', '\\' and '/'
+                    value.append(escaped);
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * @return the value of the current field, which must be a number
+     * @throws NumberFormatException if the value is not a number
+     */
+    public double doubleValue() {
+        int i = valueStart;
+        boolean negative = i < end && json.charAt(i) == '-';
+        if (negative)
+            i++;
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            char c = json.charAt(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (fraction)
+                    scale++;
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        boolean exponent = i < end && (json.charAt(i) == 'e' || json.charAt(i) == 'E');
+        if (digits == 0 || digits > 15 || exponent) // not a short decimal, leave it to the JDK
+            return Double.parseDouble(rawValue());
+        double value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the text of the value of the current field, which must be a number, true, false or null
+     */
+    public String rawValue() {
+        return json.subSequence(valueStart, scalarEnd(valueStart)).toString();
+    }
+
+    private void push(char container) {
+        if (depth == containers.length) {
+            containers = Arrays.copyOf(containers, depth * 2);
+            nameStarts = Arrays.copyOf(nameStarts, depth * 2);
+            nameEnds = Arrays.copyOf(nameEnds, depth * 2);
+        }
+        containers[depth] = container;
+        nameStarts[depth] = nameStart;
+        nameEnds[depth] = nameEnd;
+        depth++;
+        nameStart = nameEnd = -1;
+    }
+
+    /**
+     * @return the position after the closing quote of the string starting at the given position
+     */
+    private int skipString(int start) {
+        CharSequence json = this.json;
+        int end = this.end;
+        int i = start + 1;
+        while (i < end) {
+            char c = json.charAt(i++);
+            if (c == '\\')
+                i++;
+            else if (c == '"')
+                return i;
+        }
+        return end;
+    }
+
+    private int scalarEnd(int start) {
+        int i = start;
+        while (i < end) {
+            char c = json.charAt(i);
+            if (c == ',' || c == '}' || c == ']' || isWhitespace(c))
+                break;
+            i++;
+        }
+        return i;
+    }
+
+    private boolean regionEquals(int start, int stop, String name) {
+        if (start < 0 || stop - start != name.length())
+            return false;
+        for (int i = 0; i < name.length(); i++)
+            if (json.charAt(start + i) != name.charAt(i))
+                return false;
+        return true;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+}
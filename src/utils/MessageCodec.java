@@ -0,0 +1,221 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * this class encodes and decodes command messages directly in byte buffers, shared by the client and the server
+ * messages are encoded into a buffer supplied by the caller (which may be reused or direct): the header is written,
+ * the payload is encoded as UTF-8 in place, and the length is written in place, without intermediate arrays.
+ * frames are decoded by reading the header from the buffer into a reusable Frame, which refers to the payload
+ * in the buffer instead of copying it.
+ * auth message: (byte 0, byte type, int length, payload), query message: (byte 1, token, byte type, int length, payload)
+ */
+public final class MessageCodec {
+
+    public static final int AUTH_HEADER_LENGTH = 6;
+    public static final int QUERY_HEADER_LENGTH = 6 + StratoUtils.TOKEN_LENGTH;
+
+    private MessageCodec() {
+    }
+
+    /**
+     * a decoded frame, reused for every frame of a connection
+     * the token and the payload are positions in the decoded buffer, valid until the buffer is changed.
+     */
+    public static final class Frame {
+        private ByteBuffer buffer;
+        private byte phase;
+        private byte type;
+        private int tokenOffset;
+        private int payloadOffset;
+        private int payloadLength;
+
+        public byte getPhase() {
+            return phase;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public int getPayloadLength() {
+            return payloadLength;
+        }
+
+        /**
+         * copies the token of a query message
+         *
+         * @param token array of TOKEN_LENGTH bytes receiving the token
+         */
+        public void copyToken(byte[] token) {
+            for (int i = 0; i < StratoUtils.TOKEN_LENGTH; i++)
+                token[i] = buffer.get(tokenOffset + i);
+        }
+
+        /**
+         * @return a copy of the payload
+         */
+        public byte[] copyPayload() {
+            byte[] payload = new byte[payloadLength];
+            if (buffer.hasArray()) {
+                System.arraycopy(buffer.array(), buffer.arrayOffset() + payloadOffset, payload, 0, payloadLength);
+                return payload;
+            }
+            for (int i = 0; i < payloadLength; i++)
+                payload[i] = buffer.get(payloadOffset + i);
+            return payload;
+        }
+
+        /**
+         * @return the payload decoded as UTF-8
+         */
+        public String payloadString() {
+            if (buffer.hasArray())
+                return new String(buffer.array(), buffer.arrayOffset() + payloadOffset, payloadLength, StandardCharsets.UTF_8);
+            return new String(copyPayload(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @param phase the phase byte of a message
+     * @return the length of the header of messages of the phase, or -1 if the phase is unknown
+     */
+    public static int headerLength(byte phase) {
+        return phase == 0 ? AUTH_HEADER_LENGTH : phase == 1 ? QUERY_HEADER_LENGTH : -1;
+    }
+
+    /**
+     * @param payload a message payload
+     * @return the length of the encoded auth message
+     */
+    public static int authMessageLength(CharSequence payload) {
+        return AUTH_HEADER_LENGTH + utf8Length(payload);
+    }
+
+    /**
+     * @param payload a message payload
+     * @return the length of the encoded query message
+     */
+    public static int queryMessageLength(CharSequence payload) {
+        return QUERY_HEADER_LENGTH + utf8Length(payload);
+    }
+
+    /**
+     * encodes an authentication message at the position of the buffer, advancing it past the message
+     *
+     * @param buffer  the buffer receiving the message
+     * @param type    message type
+     * @param payload message content (payload)
+     * @throws java.nio.BufferOverflowException if the message does not fit in the buffer
+     */
+    public static void encodeAuthMessage(ByteBuffer buffer, byte type, CharSequence payload) {
+        buffer.put((byte) 0).put(type);
+        encodePayload(buffer, payload);
+    }
+
+    /**
+     * encodes a query message at the position of the buffer, advancing it past the message
+     *
+     * @param buffer  the buffer receiving the message
+     * @param token   the token to be appended to the message
+     * @param type    message type
+     * @param payload message content (payload)
+     * @throws InvalidTokenException if the given token does not follow the normal token format
+     * @throws java.nio.BufferOverflowException if the message does not fit in the buffer
+     */
+    public static void encodeQueryMessage(ByteBuffer buffer, CharSequence token, byte type, CharSequence payload) throws InvalidTokenException {
+        if (utf8Length(token) != StratoUtils.TOKEN_LENGTH)
+            throw new InvalidTokenException();
+        buffer.put((byte) 1);
+        encodeUtf8(buffer, token);
+        buffer.put(type);
+        encodePayload(buffer, payload);
+    }
+
+    /**
+     * decodes the frame at the position of the buffer, advancing the position past it if it is complete
+     * the phase must be known (see headerLength()).
+     *
+     * @param buffer the buffer holding received bytes, from its position to its limit
+     * @param frame  the frame receiving the decoded message
+     * @return 0 if a frame was decoded, otherwise the number of bytes the frame needs (header and payload,
+     * or only the header while it is incomplete), or -1 if its length is negative
+     */
+    public static int decode(ByteBuffer buffer, Frame frame) {
+        int start = buffer.position();
+        byte phase = buffer.get(start);
+        int headerLength = headerLength(phase);
+        if (buffer.remaining() < headerLength)
+            return headerLength;
+        int length = buffer.getInt(start + headerLength - 4);
+        if (length < 0)
+            return -1;
+        if (buffer.remaining() < headerLength + length)
+            return headerLength + length;
+        frame.buffer = buffer;
+        frame.phase = phase;
+        frame.tokenOffset = start + 1;
+        frame.type = buffer.get(start + headerLength - 5);
+        frame.payloadOffset = start + headerLength;
+        frame.payloadLength = length;
+        buffer.position(start + headerLength + length);
+        return 0;
+    }
+
+    /**
+     * reserves the length, encodes the payload, and writes its length in place
+     */
+    private static void encodePayload(ByteBuffer buffer, CharSequence payload) {
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        encodeUtf8(buffer, payload);
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+    }
+
+    /**
+     * encodes characters as UTF-8, unpaired surrogates are replaced with '?' like String.getBytes() does
+     */
+    private static void encodeUtf8(ByteBuffer buffer, CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | c >> 6)).put((byte) (0x80 | c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int code = Character.toCodePoint(c, text.charAt(++i));
+                    buffer.put((byte) (0xf0 | code >> 18)).put((byte) (0x80 | code >> 12 & 0x3f))
+                            .put((byte) (0x80 | code >> 6 & 0x3f)).put((byte) (0x80 | code & 0x3f));
+                } else {
+                    buffer.put((byte) '?');
+                }
+            } else {
+                buffer.put((byte) (0xe0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3f)).put((byte) (0x80 | c & 0x3f));
+            }
+        }
+    }
+
+    private static int utf8Length(CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length++;
+                }
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
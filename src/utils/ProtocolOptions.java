@@ -0,0 +1,59 @@
+package utils;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * this class lists the optional protocol features that a client and the server can agree on
+ * a client that wants options sends an Auth_Options message (auth type 4) with a comma-separated list
+ * before signing in, and the server answers with an Auth_Options message listing the options it accepted.
+ * clients that send nothing get the original protocol.
+ */
+public final class ProtocolOptions {
+
+    // APOD images are relayed in chunks while they are downloaded, with the hash sent after the data
+    public static final String STREAM = "stream";
+    // queries are handled asynchronously, so several can be outstanding at once. the payloads of APOD and Insight
+    // queries, and of the info, hash, fail and acknowledge messages about them, are prefixed with a request id ("id|payload").
+    // data frames are sent in the order of their hash messages, and failed queries do not end the session.
+    public static final String PIPELINE = "pipeline";
+    // data is verified with CRC32C checksums ("img-crc32c-1a2b3c4d") instead of Arrays.hashCode() ("img-123"),
+    // only accepted when both sides run on a JVM that supports CRC32C
+    public static final String CRC32C = "crc32c";
+    // images are sent in chunks that each carry a CRC32 checksum, and damaged chunks are requested again
+    // with a Query_Ranges message (query type 8) instead of repeating the whole query
+    public static final String RANGES = "ranges";
+    // no data socket is connected (the Auth_Connect message carries port 0), and data frames are sent
+    // on the command connection instead, each prefixed with the phase byte 2
+    public static final String MUX = "mux";
+    // data frames are flow controlled: the client grants byte credits with Query_Credit messages (query type 9,
+    // payload the number of bytes) as it reads the data, and the server stops writing when the credits run out
+    public static final String CREDIT = "credit";
+    // the batch of all Insight sols, if it reaches a threshold size, is sent compressed with Deflate as data type 7:
+    // int item count, then (int length, bytes) of the items of a type 4 batch compressed together
+    public static final String DEFLATE = "deflate";
+
+    private ProtocolOptions() {
+    }
+
+    /**
+     * @param list comma-separated option names
+     * @return the set of options in the list
+     */
+    public static Set<String> parse(String list) {
+        Set<String> options = new LinkedHashSet<>();
+        for (String option : list.split(","))
+            if (!option.trim().isEmpty())
+                options.add(option.trim());
+        return Collections.unmodifiableSet(options);
+    }
+
+    /**
+     * @param options a set of options
+     * @return the options as a comma-separated list
+     */
+    public static String format(Set<String> options) {
+        return String.join(",", options);
+    }
+}
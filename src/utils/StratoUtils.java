@@ -1,14 +1,13 @@
 package utils;
 
 import java.io.*;
-import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * this class is for constants, client-server shared methods, and methods not directly related to network operations
@@ -22,6 +21,7 @@ public final class StratoUtils {
             "https://api.nasa.gov/planetary/apod?api_key=VgdpOJ1gLggIX6FTts3OAZhu9J0d7iaSNx921Itr&date=";
     public static final String INSIGHT_URL =
             "https://api.nasa.gov/insight_weather/?api_key=VgdpOJ1gLggIX6FTts3OAZhu9J0d7iaSNx921Itr&feedtype=json&ver=1.0";
+    public static final int MAX_INFLATE_RATIO = 32; // of inflated to compressed length, accepted from a peer
 
     //
 
@@ -43,16 +43,8 @@ public final class StratoUtils {
      * @return the message as a byte array
      */
     public static byte[] makeAuthMessage(byte type, String payload) {
-        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
-        byte[] length = StratoUtils.intToByte(payloadBytes.length);
-        byte[] request = new byte[6 + payloadBytes.length];
-
-        request[0] = 0;
-        request[1] = type;
-
-        System.arraycopy(length, 0, request, 2, 4);
-        System.arraycopy(payloadBytes, 0, request, 6, payloadBytes.length);
-
+        byte[] request = new byte[MessageCodec.authMessageLength(payload)];
+        MessageCodec.encodeAuthMessage(ByteBuffer.wrap(request), type, payload);
         return request;
     }
 
@@ -66,81 +58,53 @@ public final class StratoUtils {
      * @throws InvalidTokenException if the given token does not follow the normal token format
      */
     public static byte[] makeQueryMessage(String token, byte type, String payload) throws InvalidTokenException {
-        byte[] tokenBytes = token.getBytes(StandardCharsets.UTF_8);
-        if (tokenBytes.length != TOKEN_LENGTH)
-            throw new InvalidTokenException();
-        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
-        byte[] length = StratoUtils.intToByte(payloadBytes.length);
-        byte[] request = new byte[6 + TOKEN_LENGTH + payloadBytes.length];
-
-        request[0] = 1;
-        request[18] = type;
-
-        System.arraycopy(tokenBytes, 0, request, 1, 17);
-        System.arraycopy(length, 0, request, 19, 4);
-        System.arraycopy(payloadBytes, 0, request, 23, payloadBytes.length);
-
+        byte[] request = new byte[MessageCodec.queryMessageLength(payload)];
+        MessageCodec.encodeQueryMessage(ByteBuffer.wrap(request), token, type, payload);
         return request;
     }
 
+    // names of the fields of a 'PRE' JSON object, in the order of their values
+    private static final String[] PRESSURE_FIELDS = {"av", "ct", "mn", "mx"};
+
     /**
      * given a json object, extracts a url from it
+     * the value of the last "url" field is returned ("hdurl" does not count).
      *
      * @param json the json object to be processed
      * @return the url if found, empty string otherwise
      */
-    public static String extractURL(String json) {
-        String pattern = "\\burl\":\"[^\"]+";
-        Pattern urlPattern = Pattern.compile(pattern);
-        Matcher matcher = urlPattern.matcher(json);
-
+    public static String extractURL(CharSequence json) {
+        JsonScanner scanner = new JsonScanner(json);
         String url = "";
-
-        while (matcher.find()) {
-            url = matcher.group().substring(6);
-        }
+        while (scanner.nextField())
+            if (scanner.nameEquals("url") && scanner.isString())
+                url = scanner.stringValue();
         return url;
     }
 
     /**
-     * downloads an image from the web
-     *
-     * @param url url of the image
-     * @return the image as a byte array
-     * @throws IOException from the ByteArrayOutputStream operations
-     */
-    public static byte[] downloadImage(String url) throws IOException {
-        URL imgUrl = new URL(url);
-        InputStream imgInput = new BufferedInputStream(imgUrl.openStream());
-        ByteArrayOutputStream imgOutput = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int length;
-        while ((length = imgInput.read(buffer)) != -1) {
-            imgOutput.write(buffer, 0, length);
-        }
-        imgInput.close();
-        imgOutput.close();
-        return imgOutput.toByteArray();
-    }
-
-    /**
-     * given a json object, extracts a list of "PRE" objects (based on the Insight API)
+     * given an Insight API response, extracts the values of its first "PRE" objects in one pass
      *
      * @param response the json object to be processed
-     * @return list of PRE json objects
+     * @param max      the maximum number of "PRE" objects
+     * @return for every "PRE" object, its av, ct, mn and mx values (NaN if missing)
      */
-    public static String[] extractPREObjects(String response) {
-        String[] preObjects = new String[7];
-        String patString = "\"PRE\"[^}]+}";
-        Pattern pattern = Pattern.compile(patString);
-        Matcher matcher = pattern.matcher(response);
-        int solCount = 0;
-        while (matcher.find() && (solCount < preObjects.length)) {
-            String pre = matcher.group().substring(7);
-            preObjects[solCount] = pre;
-            solCount++;
+    public static double[][] extractPressures(CharSequence response, int max) {
+        double[][] pressures = new double[max][];
+        int count = 0;
+        JsonScanner scanner = new JsonScanner(response);
+        while (scanner.nextField()) {
+            if (scanner.nameEquals("PRE") && scanner.isObject()) {
+                if (count == max)
+                    break;
+                pressures[count++] = new double[]{Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+            } else if (count > 0 && scanner.parentNameEquals("PRE") && scanner.isNumber()) {
+                int field = pressureField(scanner);
+                if (field >= 0)
+                    pressures[count - 1][field] = scanner.doubleValue();
+            }
         }
-        return preObjects;
+        return Arrays.copyOf(pressures, count);
     }
 
     /**
@@ -150,19 +114,32 @@ public final class StratoUtils {
      * @return formatted values
      */
     public static String[] getPressureValues(String pressure) {
-        try {
+        String[] values = new String[PRESSURE_FIELDS.length];
+        JsonScanner scanner = new JsonScanner(pressure);
+        while (scanner.nextField()) {
+            int field = pressureField(scanner);
+            if (field >= 0 && scanner.depth() == 1 && scanner.isNumber())
+                values[field] = scanner.rawValue();
+        }
+        for (String value : values)
+            if (value == null)
+                return new String[]{"No data for the given sol"};
 
-        String[] info = pressure.substring(1, pressure.length() - 1).split(",");
-        List<String> values = Arrays.stream(info).map(field -> field.split(":")[1].trim()).collect(Collectors.toList());
-        info[0] = String.format("%-40s %s pascals", "Average atmospheric pressure:", values.get(0));
-        info[1] = String.format("%-40s %s samples", "Total number of samples:", values.get(1));
-        info[2] = String.format("%-40s %s pascals", "Minimum atmospheric pressure:", values.get(2));
-        info[3] = String.format("%-40s %s pascals", "Maximum atmospheric pressure:", values.get(3));
+        return new String[]{
+                String.format("%-40s %s pascals", "Average atmospheric pressure:", values[0]),
+                String.format("%-40s %s samples", "Total number of samples:", values[1]),
+                String.format("%-40s %s pascals", "Minimum atmospheric pressure:", values[2]),
+                String.format("%-40s %s pascals", "Maximum atmospheric pressure:", values[3])};
+    }
 
-        return info;
-        } catch (ArrayIndexOutOfBoundsException e) {
-            return new String[]{"No data for the given sol"};
-        }
+    /**
+     * @return the index of the current field in PRESSURE_FIELDS, or -1 if it is not a pressure field
+     */
+    private static int pressureField(JsonScanner scanner) {
+        for (int i = 0; i < PRESSURE_FIELDS.length; i++)
+            if (scanner.nameEquals(PRESSURE_FIELDS[i]))
+                return i;
+        return -1;
     }
 
     /**
@@ -173,17 +150,99 @@ public final class StratoUtils {
      * @return the hash code
      */
     public static String generateHash(int type, byte[] data) {
-        StringBuilder hash = new StringBuilder();
-        if (type == 1)
-            hash.append("img-");
-        else
-            hash.append("str-");
+        return generateHash(type, data, false);
+    }
 
-        hash.append(Arrays.hashCode(data));
+    /**
+     * generates a hash for a file, in the original format or as a CRC32C checksum
+     *
+     * @param type   type of the file
+     * @param data   the file as a byte array
+     * @param crc32c whether the "crc32c" protocol option is in use
+     * @return the hash code
+     */
+    public static String generateHash(int type, byte[] data, boolean crc32c) {
+        DataHash hash = new DataHash(type, crc32c);
+        hash.update(data, 0, data.length);
+        return hash.toString();
+    }
 
+    /**
+     * generates a hash for a file held in a buffer (e.g. a memory-mapped file), equal to that of the same bytes in an array
+     *
+     * @param type   type of the file
+     * @param data   the file, from its position to its limit
+     * @param crc32c whether the "crc32c" protocol option is in use
+     * @return the hash code
+     */
+    public static String generateHash(int type, ByteBuffer data, boolean crc32c) {
+        DataHash hash = new DataHash(type, crc32c);
+        hash.update(data);
         return hash.toString();
     }
 
+    /**
+     * computes the checksum of a chunk of an image sent with the "ranges" protocol option
+     *
+     * @param chunk the chunk, from its position to its limit
+     * @return the CRC32 checksum of the chunk
+     */
+    public static int chunkChecksum(ByteBuffer chunk) {
+        CRC32 checksum = new CRC32();
+        checksum.update(chunk.duplicate());
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * compresses data sent with the "deflate" protocol option
+     *
+     * @param data the data, e.g. a JSON object
+     * @return the data compressed with Deflate (zlib format)
+     */
+    public static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] block = new byte[1024];
+            while (!deflater.finished())
+                compressed.write(block, 0, deflater.deflate(block));
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * decompresses data received with the "deflate" protocol option.
+     * the output is limited to MAX_INFLATE_RATIO times the compressed length, so a small frame cannot exhaust the memory.
+     *
+     * @param data the data compressed with Deflate (zlib format)
+     * @return the original data
+     * @throws DataFormatException if the data is not a complete Deflate stream or inflates beyond the limit
+     */
+    public static byte[] inflate(byte[] data) throws DataFormatException {
+        long limit = Math.min((long) data.length * MAX_INFLATE_RATIO, Integer.MAX_VALUE - 8);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream original = new ByteArrayOutputStream(data.length * 4);
+            byte[] block = new byte[1024];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(block);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("Incomplete Deflate stream");
+                if (original.size() + length > limit)
+                    throw new DataFormatException("Deflate stream inflates beyond " + limit + " bytes");
+                original.write(block, 0, length);
+            }
+            return original.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
     /**
      * saves an image locally to the machine
      *